@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+/**
+ * What a {@link RetryingClient} does with a new message when its buffer is full.
+ */
+public enum AdmissionPolicy {
+    /**
+     * Waits for room in the buffer, up to a timeout, then rejects the message.
+     */
+    BLOCK,
+
+    /**
+     * Rejects the message at once.
+     */
+    REJECT,
+
+    /**
+     * Evicts buffered messages of lower priority to make room, or rejects the message if it has the lowest
+     * priority. This is the behavior of the persisters themselves.
+     */
+    DROP_LOWEST
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the n-th consecutive delay is drawn uniformly between zero and
+ * min(max, base * 2^n), so that clients that failed together do not retry together.
+ */
+class Backoff {
+    private final Long base;
+    private final Long max;
+    private int attempts = 0; //guarded by this
+
+    /**
+     * @param base Ceiling of the first delay, in milliseconds.
+     * @param max Largest ceiling of any delay, in milliseconds.
+     */
+    Backoff(Long base, Long max) {
+        if (base <= 0 || max < base) throw new IllegalArgumentException("Backoff should satisfy 0 < base <= max");
+        this.base = base;
+        this.max = max;
+    }
+
+    /**
+     * Returns the next delay in milliseconds.
+     */
+    synchronized long next() {
+        long ceiling = this.base << Math.min(this.attempts, 30);
+        if (ceiling <= 0 || ceiling > this.max) ceiling = this.max;
+        if (this.attempts < 31) this.attempts++;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Starts again from the first delay.
+     */
+    synchronized void reset() {
+        this.attempts = 0;
+    }
+}
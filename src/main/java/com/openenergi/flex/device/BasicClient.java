@@ -18,6 +18,7 @@ package com.openenergi.flex.device;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.microsoft.azure.iothub.*;
+import com.openenergi.flex.message.Codec;
 import com.openenergi.flex.message.Message;
 import com.openenergi.flex.message.MessageContext;
 import com.openenergi.flex.message.Signal;
@@ -25,13 +26,39 @@ import com.openenergi.flex.message.Signal;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * A client that sends messages straight to the IotHub, without buffering them.
+ *
+ * Once connected, a supervisor watches the connection and reopens it when it is found dead: after several
+ * consecutive messages fail with a transport error, or when messages have been waiting for an acknowledgement
+ * for too long. The connection goes through the states of {@link ConnectionState}, and onStateChange() can be
+ * used to follow them - a {@link RetryingClient} uses them to stop sending while the connection is reopened.
+ */
 public class BasicClient implements Client {
 	private static final Logger logger = Logger.getLogger("Client");
 	private static String connStr = "HostName=%s;DeviceId=%s;SharedAccessKey=%s";
+	private static final Integer failuresBeforeReconnect = 3; //consecutive transport errors
+	private static final Long ackTimeout = 60000L; //reconnect if no acknowledgement arrives for this long
+	private static final Long watchPeriod = 5000L;
+	private static final Long reconnectBackoffBase = 1000L;
+	private static final Long reconnectBackoffMax = 60000L;
+	private static final String contentTypeProperty = "flex-content-type";
+	private static final String contentEncodingProperty = "flex-content-encoding";
+	private static final ScheduledExecutorService supervisor = Executors.newScheduledThreadPool(2, (Runnable r) -> {
+		Thread t = new Thread(r, "flex-supervisor");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	/**
 	 * This determines what protocol to use. We recommend AMQPS whenever possible or 
@@ -56,21 +83,33 @@ public class BasicClient implements Client {
 	
 	};
 	private Protocol protocol = Protocol.AMQPS;
-	private DeviceClient client;
+	private final String connectionString;
+	private volatile DeviceClient client;
 	private Consumer<MessageContext> onPublishCallback;
 	private Consumer<Signal<?>> onSignalCallback;
+	private Consumer<ConnectionState> onStateCallback;
 	private Boolean subscribed = true;
-	
-	private Boolean connected = false;
+	private volatile Codec codec = Codec.JSON;
+
+	private volatile ConnectionState state = ConnectionState.DISCONNECTED; //changed while holding this
+	private volatile int generation = 0; //of the DeviceClient, so that late acknowledgements of a closed one are ignored
+	private final AtomicInteger pending = new AtomicInteger(0); //messages sent but not acknowledged
+	private final AtomicInteger failures = new AtomicInteger(0); //consecutive transport errors
+	private volatile long lastProgress = 0L; //last acknowledgement, or send while none was pending
+	private final Backoff reconnectBackoff = new Backoff(BasicClient.reconnectBackoffBase, BasicClient.reconnectBackoffMax);
+	private ScheduledFuture<?> watch;
 	
 	private class HubCallback implements IotHubEventCallback {
 		private Consumer<MessageContext> callback;
+		private final int generation;
 		
-		public HubCallback(Consumer<MessageContext> callback){
+		public HubCallback(Consumer<MessageContext> callback, int generation){
 			this.callback = callback;
+			this.generation = generation;
 		}
 		
 		public void execute(IotHubStatusCode status, Object context) {
+			BasicClient.this.acknowledged(this.generation, status);
 			if (this.callback==null)return;
 			
 			MessageContext ctx;
@@ -96,7 +135,7 @@ public class BasicClient implements Client {
 		public IotHubMessageResult execute(
 				com.microsoft.azure.iothub.Message rawMessage, Object context) {
 			try {
-				Signal msg = (Signal) Message.deserialize(new String(rawMessage.getBytes(), StandardCharsets.UTF_8));
+				Signal msg = (Signal) Message.deserialize(rawMessage.getBytes());
 				if (this.callback != null){
 					this.callback.accept(msg);
 				} else {
@@ -127,11 +166,7 @@ public class BasicClient implements Client {
 	 * @param deviceKey shared access key for the device. 
 	 */
 	public BasicClient(String hubUrl, String deviceId, String deviceKey) throws IllegalArgumentException{
-		try {
-			this.client = new DeviceClient(String.format(BasicClient.connStr, hubUrl, deviceId, deviceKey).toString(), this.protocol.value);
-		} catch (URISyntaxException ex){
-			throw new IllegalArgumentException("Invalid Hub Url");
-		}
+		this(hubUrl, deviceId, deviceKey, Protocol.AMQPS);
 	}
 
 	/**
@@ -144,42 +179,195 @@ public class BasicClient implements Client {
 	 * @param deviceKey shared access key for the device.
 	 */
 	public BasicClient(String hubUrl, String deviceId, String deviceKey, Protocol protocol) throws IllegalArgumentException{
+		this.protocol = protocol;
+		this.connectionString = String.format(BasicClient.connStr, hubUrl, deviceId, deviceKey);
+		this.client = this.newDeviceClient();
+	}
+
+	private DeviceClient newDeviceClient() throws IllegalArgumentException {
 		try {
-			this.client = new DeviceClient(String.format(BasicClient.connStr, hubUrl, deviceId, deviceKey).toString(), protocol.value);
+			return new DeviceClient(this.connectionString, this.protocol.value);
 		} catch (URISyntaxException ex){
 			throw new IllegalArgumentException("Invalid Hub Url");
 		}
 	}
 	
 	/**
-	 * Connects to the IotHub.
+	 * Connects to the IotHub. Once connected, the connection is reopened automatically if it is found dead,
+	 * until disconnect() is called. Idempotent.
 	 * @throws IOException if the connection does not succeed.
 	 */
-	public void connect() throws IOException {
-		if (this.connected) return;
+	public synchronized void connect() throws IOException {
+		if (this.state != ConnectionState.DISCONNECTED) return;
 		
-		this.client.open();
+		this.setState(ConnectionState.CONNECTING);
+		try {
+			this.client.open();
+		} catch (IOException | RuntimeException ex){
+			this.setState(ConnectionState.DISCONNECTED);
+			throw ex;
+		}
 
 		logger.log(Level.INFO, "Connected to IoT Hub via " + this.protocol.toString());
 		
 		if (this.subscribed) this.client.setMessageCallback(new SignalCallback(this.onSignalCallback), null);
+		this.lastProgress = System.currentTimeMillis();
+		this.setState(ConnectionState.CONNECTED);
+		this.watch = BasicClient.supervisor.scheduleWithFixedDelay(this::watch, BasicClient.watchPeriod, BasicClient.watchPeriod, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
-	 * Disconnects from the IotHub. Idempotent.
+	 * Disconnects from the IotHub and stops reopening the connection. Idempotent.
 	 */
-	public void disconnect() {
-		if (!this.connected) return;
+	public synchronized void disconnect() {
+		if (this.state == ConnectionState.DISCONNECTED) return;
 		
+		this.setState(ConnectionState.DISCONNECTED);
+		this.generation++;
+		this.pending.set(0);
+		if (this.watch != null) this.watch.cancel(false);
 		try {
 			this.client.close();
-		} catch (IOException ignored){
+		} catch (IOException | RuntimeException ignored){
 			//Ignore IOExceptions to make method idempotent
 		} finally {
-			this.connected = false;
+			this.client = this.newDeviceClient(); //a closed DeviceClient cannot be reopened
+		}
+	}
+
+	/**
+	 * Returns the current state of the connection.
+	 */
+	public ConnectionState getState() {
+		return this.state;
+	}
+
+	/**
+	 * Sets the Lambda to invoke when the state of the connection changes. It is invoked on the thread causing the
+	 * change (possibly while the client is locked), so it should not block or call back into the client.
+	 *
+	 * <pre>
+	 * {@code
+	 * (ConnectionState state) -> System.out.println("Connection " + state)
+	 * }
+	 * </pre>
+	 * @param callback
+	 */
+	@Override
+	public void onStateChange(Consumer<ConnectionState> callback){
+		this.onStateCallback = callback;
+	}
+
+	private void setState(ConnectionState state){
+		if (this.state == state) return;
+		logger.log(Level.INFO, "Connection " + this.state + " -> " + state);
+		this.state = state;
+		Consumer<ConnectionState> callback = this.onStateCallback;
+		if (callback != null) callback.accept(state);
+	}
+
+	/**
+	 * Counts a message sent on the current connection.
+	 */
+	private int sent(){
+		int generation = this.generation;
+		if (this.pending.getAndIncrement() == 0) this.lastProgress = System.currentTimeMillis();
+		return generation;
+	}
+
+	/**
+	 * Tracks the health of the connection from the acknowledgement of a message. ERROR and MESSAGE_EXPIRED
+	 * are how the IoT Hub SDK reports messages that could not be sent over the connection; any other status
+	 * means the hub answered.
+	 */
+	private void acknowledged(int generation, IotHubStatusCode status){
+		if (generation != this.generation) return; //sent over a connection since closed
+		this.pending.decrementAndGet();
+		this.lastProgress = System.currentTimeMillis();
+		if (status == IotHubStatusCode.ERROR || status == IotHubStatusCode.MESSAGE_EXPIRED){
+			this.transportFailed();
+			return;
+		}
+		this.failures.set(0);
+		if (this.state == ConnectionState.DEGRADED){
+			synchronized (this){
+				if (this.state == ConnectionState.DEGRADED) this.setState(ConnectionState.CONNECTED);
+			}
+		}
+	}
+
+	private synchronized void transportFailed(){
+		if (!this.state.canSend()) return;
+		if (this.failures.incrementAndGet() >= BasicClient.failuresBeforeReconnect){
+			this.reconnect("after " + this.failures.get() + " consecutive transport errors");
+		} else {
+			this.setState(ConnectionState.DEGRADED);
+		}
+	}
+
+	/**
+	 * Run periodically while connected: reconnects if messages are waiting for an acknowledgement that does not come.
+	 */
+	private synchronized void watch(){
+		if (!this.state.canSend() || this.pending.get() <= 0) return;
+		long silence = System.currentTimeMillis() - this.lastProgress;
+		if (silence > BasicClient.ackTimeout) this.reconnect("as no acknowledgement arrived for " + silence + "ms");
+	}
+
+	/**
+	 * Starts reopening the connection. Must be called while holding this.
+	 */
+	private void reconnect(String reason){
+		logger.log(Level.WARNING, "Reconnecting to IoT Hub " + reason);
+		this.setState(ConnectionState.RECONNECTING);
+		this.generation++;
+		this.pending.set(0);
+		this.failures.set(0);
+		BasicClient.supervisor.execute(this::reopen);
+	}
+
+	/**
+	 * Closes the dead connection and opens a new one, retrying with backoff until it succeeds or the client
+	 * is disconnected. Runs on the supervisor, without holding this while opening.
+	 */
+	private void reopen(){
+		DeviceClient dead;
+		synchronized (this){
+			if (this.state != ConnectionState.RECONNECTING) return;
+			dead = this.client;
+		}
+		try {
+			dead.close();
+		} catch (IOException | RuntimeException ignored){
+			//it was dead already
+		}
+
+		DeviceClient fresh;
+		try {
+			fresh = this.newDeviceClient();
+			fresh.open();
+			if (this.subscribed) fresh.setMessageCallback(new SignalCallback(this.onSignalCallback), null);
+		} catch (IOException | RuntimeException ex){
+			long delay = this.reconnectBackoff.next();
+			logger.log(Level.WARNING, "Could not reconnect to IoT Hub, retrying in " + delay + "ms: " + ex.getMessage());
+			BasicClient.supervisor.schedule(this::reopen, delay, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		synchronized (this){
+			if (this.state != ConnectionState.RECONNECTING){
+				//disconnected meanwhile
+				try {
+					fresh.close();
+				} catch (IOException | RuntimeException ignored){}
+				return;
+			}
+			this.client = fresh;
+			this.reconnectBackoff.reset();
+			this.lastProgress = System.currentTimeMillis();
+			logger.log(Level.INFO, "Reconnected to IoT Hub via " + this.protocol.toString());
+			this.setState(ConnectionState.CONNECTED);
 		}
-		
-		
 	}
 	
 	/**
@@ -201,7 +389,63 @@ public class BasicClient implements Client {
 	 * @param context The context, passed to onPublish() callback when the message is delivered
 	 */
 	public void publish(Message msg, MessageContext context){
-		this.client.sendEventAsync(new com.microsoft.azure.iothub.Message(msg.toString()), new HubCallback(this.onPublishCallback), context);
+		this.publishPayload(msg.toBytes(this.codec), context);
+	}
+
+	/**
+	 * Sends the given message to the IotHub and returns a future completed with the status the
+	 * message is acknowledged with. The onPublish() callback is not invoked for the message.
+	 *
+	 * @param msg The message
+	 * @return Future of the acknowledgement
+	 */
+	@Override
+	public CompletableFuture<IotHubStatusCode> publishAsync(Message msg){
+		CompletableFuture<IotHubStatusCode> future = new CompletableFuture<>();
+		int generation = this.sent();
+		try {
+			this.client.sendEventAsync(this.hubMessage(msg.toBytes(this.codec)),
+					(IotHubStatusCode status, Object context) -> {
+						this.acknowledged(generation, status);
+						future.complete(status);
+					}, null);
+		} catch (IllegalStateException ex){
+			//the connection is closed
+			this.acknowledged(generation, IotHubStatusCode.ERROR);
+			future.complete(IotHubStatusCode.ERROR);
+		}
+		return future;
+	}
+
+	/**
+	 * Sends an already serialized payload to the IotHub as a single hub message, eg. a JSON array of
+	 * messages (see {@link BatchingClient}). If the connection is closed, eg. while it is being reopened,
+	 * the onPublish() callback is invoked at once with the status ERROR.
+	 *
+	 * @param payload Message or array of messages serialized with the codec of the client (see getCodec())
+	 * @param context The context, passed to onPublish() callback when the payload is delivered
+	 */
+	public void publishPayload(byte[] payload, MessageContext context){
+		this.publishPayload(payload, null, context);
+	}
+
+	/**
+	 * Sends an already serialized and compressed payload to the IotHub as a single hub message, marked with the
+	 * encoding in the flex-content-encoding property.
+	 *
+	 * @param payload Message or array of messages serialized with the codec of the client, then compressed
+	 * @param encoding How the payload was compressed, or null if it was not
+	 * @param context The context, passed to onPublish() callback when the payload is delivered
+	 */
+	public void publishPayload(byte[] payload, ContentEncoding encoding, MessageContext context){
+		HubCallback callback = new HubCallback(this.onPublishCallback, this.sent());
+		try {
+			com.microsoft.azure.iothub.Message message = this.hubMessage(payload);
+			if (encoding != null) message.setProperty(BasicClient.contentEncodingProperty, encoding.getValue());
+			this.client.sendEventAsync(message, callback, context);
+		} catch (IllegalStateException ex){
+			callback.execute(IotHubStatusCode.ERROR, context);
+		}
 	}
 	
 	/**
@@ -236,6 +480,27 @@ public class BasicClient implements Client {
 
 	
 	
+	private com.microsoft.azure.iothub.Message hubMessage(byte[] payload){
+		com.microsoft.azure.iothub.Message message = new com.microsoft.azure.iothub.Message(payload);
+		//the hub SDK reserves content-type and content-encoding, so we use properties of our own; JSON is the default
+		Codec codec = this.codec;
+		if (codec != Codec.JSON) message.setProperty(BasicClient.contentTypeProperty, codec.getName());
+		return message;
+	}
+
+	/**
+	 * Sets the codec messages are sent with (default: {@link Codec#JSON}). Messages sent with another codec carry
+	 * its name in the flex-content-type property.
+	 */
+	public void setCodec(Codec codec){
+		this.codec = codec;
+	}
+
+	@Override
+	public Codec getCodec(){
+		return this.codec;
+	}
+
 	/**
 	 * Unsubscribes the basicClient from cloud-to-device messages (Signals). By default the subscription is enabled.
 	 */
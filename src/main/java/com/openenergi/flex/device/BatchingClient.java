@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.Codec;
+import com.openenergi.flex.message.Message;
+import com.openenergi.flex.message.MessageContext;
+import com.openenergi.flex.message.ReadingBatch;
+import com.openenergi.flex.message.Signal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+/**
+ * A client that packs messages into batches, sending each batch to the hub as a single array, in the codec of
+ * the wrapped client (see Messages.md). A batch is sent when it reaches the maximum number of messages, when the next message
+ * would take it over the maximum size, or when its oldest message has waited for the linger time.
+ *
+ * Payloads can be compressed with deflate or gzip once they reach a threshold size, see
+ * {@link Builder#withCompression(ContentEncoding, Integer)}. Compressed payloads carry the encoding in the
+ * flex-content-encoding property.
+ *
+ * A ReadingBatch is already an array, so it is sent on its own, after the pending batch.
+ *
+ * The hub acknowledges a batch as a whole: its status is passed to the onPublish() callback once for each
+ * message of the batch, with that message's context.
+ */
+public class BatchingClient implements Client {
+    public static class Builder {
+        private BasicClient client;
+        private Integer maxMessages = 100;
+        private Integer maxBytes = 250 * 1024;
+        private Long linger = 100L;
+        private ContentEncoding encoding;
+        private Integer compressionThreshold = 1024;
+        private Integer compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        /**
+         * @param client The client that sends the batches.
+         */
+        public Builder(BasicClient client){
+            this.client = client;
+        }
+
+        /**
+         * @param maxMessages Maximum number of messages in a batch (default: 100).
+         */
+        public Builder withMaxMessages(Integer maxMessages){
+            this.maxMessages = maxMessages;
+            return this;
+        }
+
+        /**
+         * @param maxBytes Maximum size of a batch in bytes (default: 250KiB, just under the hub's limit of 256KiB
+         *                 per message). A single message larger than this is sent on its own.
+         */
+        public Builder withMaxBytes(Integer maxBytes){
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * @param linger Maximum time in milliseconds a message waits for its batch to fill (default: 100).
+         */
+        public Builder withLinger(Long linger){
+            this.linger = linger;
+            return this;
+        }
+
+        /**
+         * Compresses payloads of at least the threshold size (default: not compressed). Batches of messages
+         * compress well, as their keys (eg. topic, entity, type and timestamp) repeat for every message.
+         * @param encoding How to compress payloads
+         * @param threshold Size in bytes below which payloads are sent as they are (default: 1024)
+         */
+        public Builder withCompression(ContentEncoding encoding, Integer threshold){
+            this.encoding = encoding;
+            this.compressionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * @param level Deflate level, from 1 (fastest) to 9 (smallest). Defaults to 6, see CompressorBenchmark
+         *              to weigh the ratio against the CPU cost.
+         */
+        public Builder withCompressionLevel(Integer level){
+            this.compressionLevel = level;
+            return this;
+        }
+
+        public BatchingClient build(){
+            if (this.maxMessages < 1) throw new IllegalArgumentException("Batches should hold at least one message");
+            if (this.maxBytes < 1) throw new IllegalArgumentException("Maximum batch size should be positive");
+            if (this.linger < 0) throw new IllegalArgumentException("Linger time should not be negative");
+            if (this.compressionThreshold < 0) throw new IllegalArgumentException("Compression threshold should not be negative");
+            if (this.compressionLevel != Deflater.DEFAULT_COMPRESSION && (this.compressionLevel < Deflater.BEST_SPEED || this.compressionLevel > Deflater.BEST_COMPRESSION)) {
+                throw new IllegalArgumentException("Compression level should be between 1 and 9");
+            }
+            Compressor compressor = this.encoding == null ? null : new Compressor(this.encoding, this.compressionLevel, this.compressionThreshold);
+            return new BatchingClient(this.client, this.maxMessages, this.maxBytes, this.linger, compressor);
+        }
+    }
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "flex-batch-linger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BasicClient client;
+    private final Integer maxMessages;
+    private final Integer maxBytes;
+    private final Long linger;
+    private final Compressor compressor; //null if payloads are not compressed
+    private Consumer<MessageContext> callback;
+
+    //the batch being filled, guarded by this
+    private List<byte[]> payloads = new ArrayList<>();
+    private List<MessageContext> contexts = new ArrayList<>();
+    private int bytes = 0;
+    private long generation = 0L; //incremented whenever a batch is sent, so that stale linger timers do nothing
+
+    private BatchingClient(BasicClient client, Integer maxMessages, Integer maxBytes, Long linger, Compressor compressor){
+        this.client = client;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.linger = linger;
+        this.compressor = compressor;
+        this.client.onPublish(this::acknowledged);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        this.client.connect();
+    }
+
+    /**
+     * Sends the pending batch and disconnects from the IotHub. Idempotent.
+     */
+    @Override
+    public void disconnect() {
+        this.flush();
+        this.client.disconnect();
+    }
+
+    @Override
+    public void publish(Message msg) {
+        this.publish(msg, new MessageContext());
+    }
+
+    /**
+     * Adds the message to the pending batch, sending the batch if it is full.
+     *
+     * @param msg The message
+     * @param ctx The context, passed to onPublish() callback when the batch holding the message is delivered
+     */
+    @Override
+    public void publish(Message msg, MessageContext ctx) {
+        byte[] payload = msg.toBytes(this.client.getCodec());
+        List<Batch> full = new ArrayList<>(2);
+        if (msg instanceof ReadingBatch) {
+            synchronized (this) {
+                if (!this.payloads.isEmpty()) full.add(this.take());
+            }
+            full.add(new Batch(Collections.singletonList(payload), Collections.singletonList(ctx)));
+            for (Batch batch : full) {
+                this.send(batch);
+            }
+            return;
+        }
+        synchronized (this) {
+            if (!this.payloads.isEmpty() && this.sizeWith(payload) > this.maxBytes) {
+                full.add(this.take());
+            }
+            this.payloads.add(payload);
+            this.contexts.add(ctx);
+            this.bytes += payload.length;
+            if (this.payloads.size() >= this.maxMessages || this.sizeWith(null) >= this.maxBytes) {
+                full.add(this.take());
+            } else if (this.payloads.size() == 1) {
+                final long generation = this.generation;
+                scheduler.schedule(() -> this.flush(generation), this.linger, TimeUnit.MILLISECONDS);
+            }
+        }
+        for (Batch batch : full) {
+            this.send(batch);
+        }
+    }
+
+    /**
+     * Adds the message to the pending batch, sending the batch if it is full.
+     * @return Future completed with the status the batch holding the message is acknowledged with
+     */
+    @Override
+    public CompletableFuture<IotHubStatusCode> publishAsync(Message msg) {
+        FutureContext ctx = new FutureContext();
+        this.publish(msg, ctx);
+        return ctx.future;
+    }
+
+    /**
+     * Context of a message published with publishAsync(), whose acknowledgement completes a future instead of
+     * going to the callback.
+     */
+    private static class FutureContext extends MessageContext {
+        final CompletableFuture<IotHubStatusCode> future = new CompletableFuture<>();
+    }
+
+    /**
+     * Sends the pending batch now, if there is one.
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (this) {
+            if (this.payloads.isEmpty()) return;
+            batch = this.take();
+        }
+        this.send(batch);
+    }
+
+    private void flush(long generation) {
+        Batch batch;
+        synchronized (this) {
+            if (this.generation != generation || this.payloads.isEmpty()) return;
+            batch = this.take();
+        }
+        this.send(batch);
+    }
+
+    /**
+     * A batch taken from the client, ready to be sent.
+     */
+    private static class Batch {
+        final List<byte[]> payloads;
+        final List<MessageContext> contexts;
+
+        Batch(List<byte[]> payloads, List<MessageContext> contexts) {
+            this.payloads = payloads;
+            this.contexts = contexts;
+        }
+    }
+
+    /**
+     * Returns the size of the pending batch serialized as a JSON array, with the given payload added. Arrays of
+     * other codecs are no larger.
+     */
+    private int sizeWith(byte[] payload) {
+        int count = this.payloads.size() + (payload == null ? 0 : 1);
+        int bytes = this.bytes + (payload == null ? 0 : payload.length);
+        return bytes + count + 1; //brackets and commas
+    }
+
+    /**
+     * Removes the pending batch. Must hold the monitor.
+     */
+    private Batch take() {
+        Batch batch = new Batch(this.payloads, this.contexts);
+        this.payloads = new ArrayList<>();
+        this.contexts = new ArrayList<>();
+        this.bytes = 0;
+        this.generation++;
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        //a lone message is sent as a plain object
+        byte[] payload = batch.payloads.size() == 1 ? batch.payloads.get(0) : this.client.getCodec().pack(batch.payloads);
+        byte[] compressed = this.compressor == null ? null : this.compressor.compress(payload);
+        if (compressed != null) {
+            this.client.publishPayload(compressed, this.compressor.getEncoding(), new MessageContext(batch.contexts));
+        } else {
+            this.client.publishPayload(payload, new MessageContext(batch.contexts));
+        }
+    }
+
+    /**
+     * Passes the status of a batch to the callback once for each of its messages.
+     */
+    @SuppressWarnings("unchecked")
+    private void acknowledged(MessageContext batchContext) {
+        if (!(batchContext.getData() instanceof List)) return;
+        Consumer<MessageContext> callback = this.callback;
+        for (MessageContext ctx : (List<MessageContext>) batchContext.getData()) {
+            ctx.setStatus(batchContext.getStatus());
+            if (ctx instanceof FutureContext) {
+                ((FutureContext) ctx).future.complete(ctx.getStatus());
+            } else if (callback != null) {
+                callback.accept(ctx);
+            }
+        }
+    }
+
+    @Override
+    public void onPublish(Consumer<MessageContext> callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void onSignal(Consumer<Signal<?>> callback) {
+        this.client.onSignal(callback);
+    }
+
+    @Override
+    public Codec getCodec() {
+        return this.client.getCodec();
+    }
+
+    @Override
+    public void onStateChange(Consumer<ConnectionState> callback) {
+        this.client.onStateChange(callback);
+    }
+
+    @Override
+    public void disableSubscription() {
+        this.client.disableSubscription();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+/**
+ * Tracks whether the hub is healthy enough to send to.
+ *
+ * The breaker starts closed: messages are sent freely. After a number of consecutive retriable failures it
+ * opens for a backoff delay, during which nothing is sent. It is then half-open: a single message is sent as
+ * a probe. If the probe succeeds the breaker closes and the backoff is reset, otherwise it opens again for a
+ * longer delay.
+ */
+class CircuitBreaker {
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Backoff backoff;
+    private final Integer failureThreshold;
+    private final Long probeTimeout;
+
+    //guarded by this
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openUntil = 0L;
+    private long probeSentAt = 0L; //zero when no probe is outstanding
+
+    /**
+     * @param backoff Gives the time the breaker stays open.
+     * @param failureThreshold Number of consecutive retriable failures that open the breaker.
+     * @param probeTimeout Time in milliseconds after which a probe whose outcome is unknown is given up on.
+     */
+    CircuitBreaker(Backoff backoff, Integer failureThreshold, Long probeTimeout) {
+        if (failureThreshold < 1) throw new IllegalArgumentException("Failure threshold should be at least 1");
+        this.backoff = backoff;
+        this.failureThreshold = failureThreshold;
+        this.probeTimeout = probeTimeout;
+    }
+
+    synchronized State state() {
+        if (this.state == State.OPEN && System.currentTimeMillis() >= this.openUntil) this.state = State.HALF_OPEN;
+        return this.state;
+    }
+
+    synchronized boolean isClosed() {
+        return this.state() == State.CLOSED;
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch until which the breaker is open, or zero if it is not.
+     */
+    synchronized long openUntil() {
+        return this.state() == State.OPEN ? this.openUntil : 0L;
+    }
+
+    /**
+     * Claims the right to send the probe while the breaker is half-open.
+     * @return Whether the caller should send the probe.
+     */
+    synchronized boolean tryProbe() {
+        if (this.state() != State.HALF_OPEN) return false;
+        long now = System.currentTimeMillis();
+        if (this.probeSentAt != 0L && now - this.probeSentAt < this.probeTimeout) return false;
+        this.probeSentAt = now;
+        return true;
+    }
+
+    /**
+     * Returns whether a probe has been sent and its outcome is not known yet.
+     */
+    synchronized boolean probing() {
+        return this.probeSentAt != 0L && System.currentTimeMillis() - this.probeSentAt < this.probeTimeout;
+    }
+
+    /**
+     * Gives up a claimed probe without sending it.
+     */
+    synchronized void cancelProbe() {
+        this.probeSentAt = 0L;
+    }
+
+    /**
+     * Records that the hub accepted (or definitively rejected) a message.
+     * @return Whether this closed the breaker.
+     */
+    synchronized boolean success() {
+        boolean closed = this.state != State.CLOSED;
+        this.state = State.CLOSED;
+        this.failures = 0;
+        this.probeSentAt = 0L;
+        this.backoff.reset();
+        return closed;
+    }
+
+    /**
+     * Records a retriable failure, opening the breaker if needed. Failures of messages sent before the breaker
+     * opened do not extend it.
+     */
+    synchronized void failure() {
+        this.failures++;
+        State state = this.state();
+        if (state == State.OPEN) return;
+        if (state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openUntil = System.currentTimeMillis() + this.backoff.next();
+            this.probeSentAt = 0L;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.openenergi.flex.device;
 
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.Codec;
 import com.openenergi.flex.message.Message;
 import com.openenergi.flex.message.MessageContext;
 import com.openenergi.flex.message.Signal;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
@@ -15,7 +18,32 @@ public interface Client {
     void disconnect();
     void publish(Message msg);
     void publish(Message msg, MessageContext ctx);
+
+    /**
+     * Publishes the message and returns a future completed with the status the hub acknowledged it with. The
+     * onPublish() callback is not invoked for the message.
+     *
+     * Every client of this SDK (BasicClient, BatchingClient, RetryingClient and GatewayClient) implements this.
+     * The default is only for other implementations, which may report acknowledgements through onPublish() only.
+     * @throws UnsupportedOperationException if the client does not override this.
+     */
+    default CompletableFuture<IotHubStatusCode> publishAsync(Message msg) {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not support publishAsync(), use publish() and onPublish()");
+    }
     void onPublish(Consumer<MessageContext> callback);
     void onSignal(Consumer<Signal<?>> callback);
     void disableSubscription();
+
+    /**
+     * Sets the Lambda to invoke when the state of the connection to the hub changes. It is invoked on the thread
+     * causing the change, so it should not block. Clients that do not track their connection never invoke it.
+     */
+    default void onStateChange(Consumer<ConnectionState> callback) {}
+
+    /**
+     * Returns the codec messages are sent with.
+     */
+    default Codec getCodec() {
+        return Codec.JSON;
+    }
 }
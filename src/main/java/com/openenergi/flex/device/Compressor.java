@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses payloads of at least a threshold size. Deflaters and their output buffers are pooled, so that
+ * compressing a payload allocates only the array returned.
+ */
+final class Compressor {
+    private static final int maxPooled = 4;
+    private static final int maxRetainedBuffer = 256 * 1024; //larger buffers are not kept between payloads
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8; //CRC32 and size, little-endian
+
+    /**
+     * A deflater with its output buffer and checksum.
+     */
+    private static final class State {
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+
+        State(Deflater deflater) {
+            this.deflater = deflater;
+        }
+    }
+
+    private final ContentEncoding encoding;
+    private final int level;
+    private final int threshold;
+    private final ConcurrentLinkedQueue<State> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * @param encoding How to compress payloads
+     * @param level Deflate level, from 1 (fastest) to 9 (smallest), or -1 for the default (6)
+     * @param threshold Size in bytes below which payloads are not compressed
+     */
+    Compressor(ContentEncoding encoding, int level, int threshold) {
+        this.encoding = encoding;
+        this.level = level;
+        this.threshold = threshold;
+    }
+
+    ContentEncoding getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * Returns the payload compressed, or null if it is under the threshold or does not get any smaller.
+     */
+    byte[] compress(byte[] payload) {
+        if (payload.length < this.threshold) return null;
+        State state = this.acquire();
+        try {
+            boolean gzip = this.encoding == ContentEncoding.GZIP;
+            int pos = 0;
+            if (gzip) {
+                System.arraycopy(Compressor.GZIP_HEADER, 0, state.buffer, 0, Compressor.GZIP_HEADER.length);
+                pos = Compressor.GZIP_HEADER.length;
+            }
+            Deflater deflater = state.deflater;
+            deflater.setInput(payload);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == state.buffer.length) state.buffer = Arrays.copyOf(state.buffer, state.buffer.length * 2);
+                pos += deflater.deflate(state.buffer, pos, state.buffer.length - pos);
+                if (pos >= payload.length) return null; //not worth it
+            }
+            if (gzip) {
+                if (pos + Compressor.GZIP_TRAILER_SIZE >= payload.length) return null;
+                if (pos + Compressor.GZIP_TRAILER_SIZE > state.buffer.length) {
+                    state.buffer = Arrays.copyOf(state.buffer, pos + Compressor.GZIP_TRAILER_SIZE);
+                }
+                state.crc.update(payload, 0, payload.length);
+                pos = littleEndian(state.buffer, pos, (int) state.crc.getValue());
+                pos = littleEndian(state.buffer, pos, payload.length);
+            }
+            return Arrays.copyOf(state.buffer, pos);
+        } finally {
+            this.release(state);
+        }
+    }
+
+    private static int littleEndian(byte[] buffer, int pos, int value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[pos++] = (byte) (value >>> (8 * i));
+        }
+        return pos;
+    }
+
+    private State acquire() {
+        State state = this.pool.poll();
+        if (state == null) {
+            //gzip has its own header and trailer around raw deflate
+            return new State(new Deflater(this.level, this.encoding == ContentEncoding.GZIP));
+        }
+        this.pooled.decrementAndGet();
+        return state;
+    }
+
+    private void release(State state) {
+        state.deflater.reset();
+        state.crc.reset();
+        if (state.buffer.length > Compressor.maxRetainedBuffer) state.buffer = new byte[4096];
+        if (this.pooled.incrementAndGet() <= Compressor.maxPooled) {
+            this.pool.offer(state);
+        } else {
+            this.pooled.decrementAndGet();
+            state.deflater.end();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+/**
+ * The state of a client's connection to the IotHub, as tracked by its connection supervisor (see {@link BasicClient}).
+ */
+public enum ConnectionState {
+    /**
+     * Not connected, either because connect() has not been called or because disconnect() has.
+     */
+    DISCONNECTED,
+
+    /**
+     * Opening the connection for the first time.
+     */
+    CONNECTING,
+
+    /**
+     * Connected, and the hub acknowledges messages.
+     */
+    CONNECTED,
+
+    /**
+     * Connected, but messages have recently failed for reasons related to the connection rather than to the hub.
+     * Messages are still sent, and the client returns to CONNECTED once the hub acknowledges one.
+     */
+    DEGRADED,
+
+    /**
+     * The connection was found dead and is being reopened, with backoff between attempts. Messages should not be
+     * sent until the client is connected again.
+     */
+    RECONNECTING;
+
+    /**
+     * Returns whether messages can be sent in this state.
+     */
+    public boolean canSend() {
+        return this == CONNECTED || this == DEGRADED;
+    }
+}
@@ -17,6 +17,7 @@ package com.openenergi.flex.device;
 import com.openenergi.flex.message.Event;
 import com.openenergi.flex.message.Message;
 import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.message.ReadingBatch;
 
 
 /**
@@ -25,7 +26,8 @@ import com.openenergi.flex.message.Reading;
  * newer messages get pushed first.
  *
  * FFR-related readings and events get a multiplier of 2. DEBUG and INFO level events
- * unrelated to FFR get a multiplier of 0.5.
+ * unrelated to FFR get a multiplier of 0.5. A batch of readings is scored by its newest
+ * reading, with a multiplier of 2 if any of its readings is FFR-related.
  */
 public class FFRPrioritizer implements Prioritizer {
 
@@ -39,6 +41,9 @@ public class FFRPrioritizer implements Prioritizer {
 
         switch (msg.getTopic()){
             case "readings":
+                if (msg instanceof ReadingBatch) {
+                    return this.score((ReadingBatch) msg);
+                }
                 if (msg.getType() == Reading.Type.AVAILABILITY_FFR_HIGH.getValue()||
                         msg.getType() == Reading.Type.AVAILABILITY_FFR_LOW.toString()
                  || msg.getType() == Reading.Type.POWER.getValue()
@@ -67,5 +72,15 @@ public class FFRPrioritizer implements Prioritizer {
         }
     }
 
+    private Long score(ReadingBatch batch) {
+        if (batch.hasType(Reading.Type.AVAILABILITY_FFR_HIGH.getValue())
+                || batch.hasType(Reading.Type.AVAILABILITY_FFR_LOW.getValue())
+                || batch.hasType(Reading.Type.POWER.getValue())
+                || batch.hasType(Reading.Type.RESPONSE_FFR_HIGH.getValue())) {
+            return batch.getTimestamp()*2;
+        }
+        return batch.getTimestamp();
+    }
+
 
 }
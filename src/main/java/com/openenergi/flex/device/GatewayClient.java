@@ -0,0 +1,550 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.Message;
+import com.openenergi.flex.message.MessageContext;
+import com.openenergi.flex.message.Signal;
+import com.openenergi.flex.persistence.MemoryPersister;
+import com.openenergi.flex.persistence.Persister;
+import com.openenergi.flex.persistence.PersisterFullException;
+import com.openenergi.flex.persistence.TokenizedObject;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A buffering client for a gateway that proxies many field devices, each with its own device identity.
+ *
+ * Messages are routed to a device by their deviceId. All devices share one persister, one in-flight window and
+ * one drainer thread, so the number of threads and buffers does not grow with the number of devices. The
+ * persister is partitioned by device with a per-device quota, so that a chatty or offline device only evicts its
+ * own messages (see {@link Builder#withDeviceQuota(Integer)}). Each
+ * device has its own backoff and circuit breaker (as in {@link RetryingClient}): while one device is backing
+ * off, or its connection is being reopened, its buffered messages are held aside and the messages of the other
+ * devices keep flowing.
+ *
+ * Each device identity still has its own connection to the hub, since the IoT Hub SDK opens one connection
+ * per device.
+ *
+ * Use {@link #close(Duration)} to flush the buffer before the application stops.
+ */
+public class GatewayClient implements Client {
+    public static class Builder {
+        private String hubUrl;
+        private BasicClient.Protocol protocol = BasicClient.Protocol.AMQPS;
+        private Persister persister;
+        private Prioritizer prioritizer = new FFRPrioritizer();
+        private Integer inFlightWindow = 1000;
+        private Integer deviceQuota = 1000;
+        private Long backoffBase = 2000L;
+        private Long backoffMax = 60000L;
+
+        /**
+         * @param hubUrl URL to the hub (normally something.azure-devices.net).
+         */
+        public Builder(String hubUrl){
+            this.hubUrl = hubUrl;
+        }
+
+        public Builder withProtocol(BasicClient.Protocol protocol){
+            this.protocol = protocol;
+            return this;
+        }
+
+        /**
+         * @param persister Persister shared by all devices. Defaults to a MemoryPersister of 10000 messages with
+         *                  the device quota. A persister given here should have a device quota of its own (see
+         *                  {@link MemoryPersister.Builder#withDeviceQuota(Integer)}).
+         */
+        public Builder withPersister(Persister persister){
+            this.persister = persister;
+            return this;
+        }
+
+        /**
+         * @param prioritizer Prioritizer for buffered messages (default: FFRPrioritizer).
+         */
+        public Builder withPrioritizer(Prioritizer prioritizer){
+            this.prioritizer = prioritizer;
+            return this;
+        }
+
+        /**
+         * @param inFlightWindow Maximum number of messages sent but not yet acknowledged, across all devices
+         *                       (default: 1000).
+         */
+        public Builder withInFlightWindow(Integer inFlightWindow){
+            this.inFlightWindow = inFlightWindow;
+            return this;
+        }
+
+        /**
+         * @param deviceQuota Maximum number of buffered messages of each device in the default persister
+         *                    (default: 1000).
+         */
+        public Builder withDeviceQuota(Integer deviceQuota){
+            this.deviceQuota = deviceQuota;
+            return this;
+        }
+
+        /**
+         * Sets the backoff of each device after retriable failures (see {@link RetryingClient.Builder#withBackoff(Long, Long)}).
+         */
+        public Builder withBackoff(Long base, Long max){
+            this.backoffBase = base;
+            this.backoffMax = max;
+            return this;
+        }
+
+        public GatewayClient build(){
+            if (this.inFlightWindow < 1) throw new IllegalArgumentException("In-flight window should be at least 1");
+            new Backoff(this.backoffBase, this.backoffMax); //validates
+            Persister persister = this.persister;
+            if (persister == null){
+                persister = new MemoryPersister.Builder()
+                        .withCapacity(10000)
+                        .withDeviceQuota(this.deviceQuota)
+                        .withLeaseTimeout(GatewayClient.leaseTimeout)
+                        .build();
+            }
+            return new GatewayClient(this, persister);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("GatewayClient");
+    private static final Integer drainBatchSize = 100;
+    private static final Long leaseTimeout = 120000L;
+    private static final Long probePollPeriod = 1000L;
+    private static final Long closePollPeriod = 20L;
+
+    private final String hubUrl;
+    private final BasicClient.Protocol protocol;
+    private final Persister persister;
+    private final Prioritizer prioritizer;
+    private final Long backoffBase;
+    private final Long backoffMax;
+    private final InFlightWindow window;
+    private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
+    private final Parker parker = new Parker();
+    private final ConcurrentHashMap<Long, TokenizedObject> orphans = new ConcurrentHashMap<>(); //locked until their device is added
+    private final ConcurrentHashMap<Long, Map<Long, TokenizedObject>> holders = new ConcurrentHashMap<>(); //token to where it is held
+    private final AtomicBoolean devicesAdded = new AtomicBoolean(false);
+    private final Thread drainer;
+    private volatile boolean busy = false; //the drainer holds a batch not yet all in flight or held
+    private volatile boolean closing = false; //no longer accepting messages
+    private volatile boolean stopped = false; //drainer stopped, persister closed
+    private Consumer<MessageContext> callback;
+    private Consumer<Signal<?>> signalCallback;
+    private boolean subscribed = true;
+
+    /**
+     * A device identity, its backoff state and whether its connection is up.
+     */
+    private static class Device {
+        final String id;
+        final Client client;
+        final CircuitBreaker breaker;
+        final ConcurrentHashMap<Long, TokenizedObject> held = new ConcurrentHashMap<>(); //locked while backing off
+        volatile boolean linkUp = true; //until the client reports otherwise
+
+        Device(String id, Client client, CircuitBreaker breaker) {
+            this.id = id;
+            this.client = client;
+            this.breaker = breaker;
+        }
+    }
+
+    private GatewayClient(Builder builder, Persister persister){
+        this.hubUrl = builder.hubUrl;
+        this.protocol = builder.protocol;
+        this.persister = persister;
+        this.prioritizer = builder.prioritizer;
+        this.backoffBase = builder.backoffBase;
+        this.backoffMax = builder.backoffMax;
+        this.window = new InFlightWindow(persister, builder.inFlightWindow, GatewayClient.leaseTimeout);
+        this.persister.onAvailable(this.parker::wake);
+        this.persister.onEvicted(this::evicted);
+        this.drainer = new Thread(this::drain, "flex-gateway-drainer");
+        this.drainer.setDaemon(true); //close() flushes the buffer, this does not hold up the JVM
+        this.drainer.start();
+    }
+
+    /**
+     * Adds a device identity to the gateway. Messages whose deviceId is the given id are sent with its key.
+     * @param deviceId Id of the device.
+     * @param deviceKey Shared access key for the device.
+     */
+    public void addDevice(String deviceId, String deviceKey){
+        this.addDevice(deviceId, new BasicClient(this.hubUrl, deviceId, deviceKey, this.protocol));
+    }
+
+    /**
+     * Adds a device identity to the gateway, sending its messages with the given client.
+     * @param deviceId Id of the device.
+     * @param client A non-buffering client for the device.
+     */
+    public void addDevice(String deviceId, Client client){
+        Device device = new Device(deviceId, client, new CircuitBreaker(new Backoff(this.backoffBase, this.backoffMax), 1, GatewayClient.leaseTimeout));
+        client.onPublish((MessageContext ctx) -> this.acknowledged(device, ctx));
+        client.onStateChange((ConnectionState state) -> {
+            device.linkUp = state.canSend();
+            //its messages in flight will not be acknowledged on the new connection: free their places for other devices
+            if (state == ConnectionState.RECONNECTING) this.window.reclaim(client);
+            if (device.linkUp) this.parker.wake(); //release its held messages
+        });
+        if (this.signalCallback != null) client.onSignal(this.signalCallback);
+        if (!this.subscribed) client.disableSubscription();
+        if (this.devices.putIfAbsent(deviceId, device) != null){
+            throw new IllegalArgumentException("Device " + deviceId + " already added");
+        }
+        this.devicesAdded.set(true);
+        this.parker.wake(); //its messages may have been held or recovered by the persister
+    }
+
+    /**
+     * Connects every device to the IotHub.
+     * @throws IOException if a connection does not succeed.
+     */
+    @Override
+    public void connect() throws IOException {
+        for (Device device : this.devices.values()){
+            device.client.connect();
+        }
+    }
+
+    /**
+     * Disconnects every device from the IotHub. Idempotent.
+     */
+    @Override
+    public void disconnect() {
+        for (Device device : this.devices.values()){
+            device.client.disconnect();
+        }
+    }
+
+    /**
+     * Publishes the message as the device given by its deviceId.
+     * @throws IllegalArgumentException if the device has not been added.
+     */
+    @Override
+    public void publish(Message msg) throws IllegalArgumentException {
+        this.publishAndGetToken(msg);
+    }
+
+    /**
+     * Publishes the message as the device given by its deviceId and returns the token of the persisted message.
+     * @throws IllegalArgumentException if the device has not been added.
+     */
+    public Long publishAndGetToken(Message msg) throws IllegalArgumentException {
+        return this.publish(msg, (CompletableFuture<IotHubStatusCode>) null);
+    }
+
+    /**
+     * Publishes the message as the device given by its deviceId and returns a future completed with its final
+     * status (see {@link RetryingClient#publishAsync(Message)}).
+     * @throws IllegalArgumentException if the device has not been added.
+     */
+    @Override
+    public CompletableFuture<IotHubStatusCode> publishAsync(Message msg) throws IllegalArgumentException {
+        CompletableFuture<IotHubStatusCode> future = new CompletableFuture<>();
+        this.publish(msg, future);
+        return future;
+    }
+
+    private Long publish(Message msg, CompletableFuture<IotHubStatusCode> future) throws IllegalArgumentException {
+        if (this.closing){
+            IllegalStateException e = new IllegalStateException("Client is closed");
+            if (future == null) throw e;
+            future.completeExceptionally(e);
+            return -1L;
+        }
+        Device device = this.route(msg);
+        if (device == null) throw new IllegalArgumentException("Unknown device " + msg.getDeviceId());
+
+        Long token = -1L;
+        boolean direct = device.linkUp && device.breaker.isClosed() && this.window.tryAcquire();
+        msg.encode(device.client.getCodec()); //so that retries do not serialize the message again
+
+        try {
+            //a message with a future is locked until the future is registered, so that the drainer cannot send it before
+            token = this.persister.put(msg, this.prioritizer.score(msg), direct || future != null);
+        } catch (PersisterFullException e) {
+            if (future != null) future.completeExceptionally(e);
+            logger.log(Level.WARNING, "Buffer full, message not persisted: " + e.getMessage());
+        }
+
+        if (future != null && token != -1L){
+            this.window.register(token, future);
+            if (!direct) this.persister.release(token);
+        }
+
+        if (direct){
+            if (token == -1L){
+                //not persisted, so its acknowledgement could not be matched: drop it rather than send it
+                this.window.release();
+                return token;
+            }
+            this.window.sent(token, device.client);
+            device.client.publish(msg, new MessageContext(token));
+        }
+        return token;
+    }
+
+    /**
+     * Shuts the gateway down gracefully, as {@link RetryingClient#close(Duration)} does: new messages are
+     * rejected, buffered messages keep being sent until they have all been acknowledged or the timeout expires,
+     * then the drainer is stopped, the persister is closed and every device is disconnected. Messages held for a
+     * device that is backing off, whose connection is down or that has not been added count as not delivered.
+     * @param timeout How long to keep sending buffered messages.
+     * @return Whether every buffered message was delivered before the timeout.
+     * @throws InterruptedException if the thread is interrupted while waiting, in which case the gateway is
+     * still shut down.
+     */
+    public boolean close(Duration timeout) throws InterruptedException {
+        this.closing = true;
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        boolean drained = false;
+        try {
+            while (!(drained = this.drained())){
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                Thread.sleep(Math.min(remaining, GatewayClient.closePollPeriod));
+            }
+        } finally {
+            this.stop();
+        }
+        return drained;
+    }
+
+    private boolean drained(){
+        if (this.busy || !this.window.isEmpty() || !this.holders.isEmpty()) return false;
+        List<TokenizedObject> left = this.persister.peekLock(1);
+        if (left.isEmpty()) return true;
+        this.persister.release(left.get(0).token);
+        return false;
+    }
+
+    private synchronized void stop() throws InterruptedException {
+        if (this.stopped) return;
+        this.stopped = true;
+        this.drainer.interrupt();
+        this.drainer.join(GatewayClient.probePollPeriod);
+
+        //hand back what will not be sent or acknowledged, so that a durable persister keeps it for the next run
+        this.release(this.orphans);
+        for (Device device : this.devices.values()){
+            this.release(device.held);
+        }
+        this.window.reclaim();
+        this.window.failAll(new IllegalStateException("Client closed before the message was delivered"));
+
+        try {
+            this.persister.close();
+        } finally {
+            this.disconnect();
+        }
+    }
+
+    /**
+     * Publishes the message as the device given by its deviceId, as for publish(Message). The context is ignored,
+     * as retry logic is handled within the client itself.
+     * @throws IllegalArgumentException if the device has not been added.
+     */
+    @Override
+    public void publish(Message msg, MessageContext ctx) throws IllegalArgumentException {
+        this.publish(msg);
+    }
+
+    private Device route(Object data){
+        if (!(data instanceof Message)) return null;
+        String deviceId = ((Message) data).getDeviceId();
+        return deviceId == null ? null : this.devices.get(deviceId);
+    }
+
+    private void acknowledged(Device device, MessageContext ctx){
+        Long token = (Long) ctx.getData();
+        this.window.acknowledged(token);
+        switch (ctx.getStatus()){
+            case HUB_OR_DEVICE_ID_NOT_FOUND:
+            case BAD_FORMAT:
+            case MESSAGE_EXPIRED:
+            case PRECONDITION_FAILED:
+            case REQUEST_ENTITY_TOO_LARGE:
+            case UNAUTHORIZED:
+            case OK:
+                if (device.breaker.success()) this.parker.wake();
+                this.persister.delete(token);
+                this.window.delivered(token, ctx, this.callback);
+                return;
+            case THROTTLED:
+            case SERVER_BUSY:
+            case INTERNAL_SERVER_ERROR:
+            case TOO_MANY_DEVICES:
+            case ERROR:
+                //retriable - release the message for retrying
+                device.breaker.failure();
+                this.window.retry(token);
+                this.parker.wake();
+                return;
+            default:
+                this.persister.delete(token);
+                this.window.delivered(token, ctx, this.callback);
+        }
+    }
+
+    /**
+     * Sends buffered messages in priority order. Messages of a device that is backing off stay locked aside until
+     * its backoff expires, so that they do not keep coming back ahead of the messages of other devices.
+     */
+    private void drain(){
+        try {
+            while (!this.stopped){
+                long wakeAt = this.releaseHeld();
+                this.busy = true;
+                List<TokenizedObject> batch = this.persister.peekLock(GatewayClient.drainBatchSize);
+                if (batch.isEmpty()){
+                    this.busy = false;
+                    this.parker.park(wakeAt);
+                    continue;
+                }
+                int orphaned = 0;
+                for (int i = 0; i < batch.size(); i++){
+                    TokenizedObject to = batch.get(i);
+                    this.unhold(to.token); //held before, until its lease expired
+                    Device device = this.route(to.data);
+                    if (device == null){
+                        this.hold(this.orphans, to); //its device may be added later
+                        orphaned++;
+                        continue;
+                    }
+                    if (!device.linkUp || (!device.breaker.isClosed() && !device.breaker.tryProbe())){
+                        this.hold(device.held, to);
+                        continue;
+                    }
+                    try {
+                        this.window.acquire();
+                    } catch (InterruptedException e){
+                        this.window.release(batch.subList(i, batch.size()));
+                        throw e;
+                    }
+                    this.window.sent(to.token, device.client);
+                    device.client.publish((Message) to.data, new MessageContext(to.token));
+                }
+                this.busy = false;
+                if (orphaned > 0){
+                    logger.log(Level.WARNING, orphaned + " buffered messages are for devices that have not been added");
+                }
+            }
+        } catch (InterruptedException e){
+            return;
+        } finally {
+            this.busy = false;
+        }
+    }
+
+    /**
+     * Hands back the held messages of devices that may send again, and those of unknown devices if a device has
+     * been added.
+     * @return The earliest time at which a device still holding messages should be looked at again, or zero.
+     */
+    private long releaseHeld(){
+        if (this.devicesAdded.getAndSet(false)) this.release(this.orphans);
+        long wakeAt = 0L;
+        for (Device device : this.devices.values()){
+            if (device.held.isEmpty() || !device.linkUp) continue; //woken when the connection is back
+            long until = device.breaker.openUntil();
+            if (until == 0L && !device.breaker.probing()){
+                this.release(device.held);
+                continue;
+            }
+            if (until == 0L) until = System.currentTimeMillis() + GatewayClient.probePollPeriod; //probe outstanding
+            if (wakeAt == 0L || until < wakeAt) wakeAt = until;
+        }
+        return wakeAt;
+    }
+
+    /**
+     * Keeps a locked message aside. A message whose lease expires while it is held is offered again by the
+     * persister, and is then taken out of where it was held, so that no message is held twice.
+     */
+    private void hold(Map<Long, TokenizedObject> held, TokenizedObject to){
+        held.put(to.token, to);
+        this.holders.put(to.token, held);
+    }
+
+    private void unhold(Long token){
+        Map<Long, TokenizedObject> held = this.holders.remove(token);
+        if (held != null) held.remove(token);
+    }
+
+    private void release(Map<Long, TokenizedObject> held){
+        List<TokenizedObject> objects = new ArrayList<>(held.values());
+        for (TokenizedObject to : objects){
+            this.unhold(to.token);
+        }
+        this.window.release(objects);
+    }
+
+    /**
+     * Returns the number of messages held aside, either for devices that cannot send or for devices that have not
+     * been added.
+     */
+    int heldCount(){
+        return this.holders.size();
+    }
+
+    /**
+     * Forgets a message evicted from the persister, and fails its future.
+     */
+    private void evicted(Long token){
+        this.unhold(token);
+        this.window.evicted(token);
+    }
+
+    @Override
+    public void onPublish(Consumer<MessageContext> callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Sets the Lambda to invoke when a signal is received by any of the devices.
+     */
+    @Override
+    public void onSignal(Consumer<Signal<?>> callback) {
+        this.signalCallback = callback;
+        for (Device device : this.devices.values()){
+            device.client.onSignal(callback);
+        }
+    }
+
+    @Override
+    public void disableSubscription() {
+        this.subscribed = false;
+        for (Device device : this.devices.values()){
+            device.client.disableSubscription();
+        }
+    }
+}
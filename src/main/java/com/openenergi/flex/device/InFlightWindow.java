@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.MessageContext;
+import com.openenergi.flex.persistence.Persister;
+import com.openenergi.flex.persistence.PersisterFullException;
+import com.openenergi.flex.persistence.TokenizedObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The persisted messages a buffering client has sent and that have not been acknowledged yet, capped by a
+ * window, and the futures of the messages published with publishAsync(). Used by {@link RetryingClient} and
+ * {@link GatewayClient}.
+ *
+ * A place in the window held by a message whose acknowledgement has not arrived within the lease timeout is
+ * reclaimed, as the message itself is by the persister.
+ */
+class InFlightWindow {
+    private static final Long pollPeriod = 1000L;
+
+    private final Persister persister;
+    private final Long leaseTimeout;
+    private final Semaphore places;
+    private final ConcurrentHashMap<Long, Flight> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<IotHubStatusCode>> futures = new ConcurrentHashMap<>();
+
+    /**
+     * When a message in flight was sent, and by which client.
+     */
+    private static class Flight {
+        final long sentAt;
+        final Client sender;
+
+        Flight(long sentAt, Client sender) {
+            this.sentAt = sentAt;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * @param persister The persister the messages are stored in.
+     * @param size Maximum number of messages sent but not yet acknowledged.
+     * @param leaseTimeout Time in milliseconds after which the place of a message that is not acknowledged is reclaimed.
+     */
+    InFlightWindow(Persister persister, Integer size, Long leaseTimeout) {
+        this.persister = persister;
+        this.leaseTimeout = leaseTimeout;
+        this.places = new Semaphore(size);
+    }
+
+    /**
+     * Takes a place in the window if one is free.
+     */
+    boolean tryAcquire() {
+        return this.places.tryAcquire();
+    }
+
+    /**
+     * Takes a place in the window, waiting for one to free up if necessary. Places held by messages whose
+     * acknowledgement has not arrived within the lease timeout are reclaimed meanwhile.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void acquire() throws InterruptedException {
+        while (!this.places.tryAcquire(InFlightWindow.pollPeriod, TimeUnit.MILLISECONDS)){
+            long expired = System.currentTimeMillis() - this.leaseTimeout;
+            for (Long token : this.inFlight.keySet()){
+                Flight flight = this.inFlight.get(token);
+                if (flight != null && flight.sentAt < expired && this.inFlight.remove(token, flight)) this.places.release();
+            }
+        }
+    }
+
+    /**
+     * Gives back a place that was taken for a message that is not sent after all.
+     */
+    void release() {
+        this.places.release();
+    }
+
+    /**
+     * Records that the message is being sent by the client in the place just taken.
+     */
+    void sent(Long token, Client sender) {
+        this.inFlight.put(token, new Flight(System.currentTimeMillis(), sender));
+    }
+
+    /**
+     * Frees the place held by the message, if any.
+     */
+    void acknowledged(Long token) {
+        if (token != null && this.inFlight.remove(token) != null) this.places.release();
+    }
+
+    /**
+     * Frees the places of every message in flight and releases them in the persister, eg. when they will never
+     * be acknowledged.
+     */
+    void reclaim() {
+        this.reclaim(null);
+    }
+
+    /**
+     * Frees the places of the messages in flight sent by the client and releases them in the persister, eg. when
+     * its connection is reopened and their acknowledgements will never arrive.
+     * @param sender The client, or null for every message in flight.
+     */
+    void reclaim(Client sender) {
+        List<Long> tokens = new ArrayList<>();
+        for (Long token : this.inFlight.keySet()){
+            Flight flight = this.inFlight.get(token);
+            if (flight == null || (sender != null && flight.sender != sender)) continue;
+            if (this.inFlight.remove(token, flight)){
+                this.places.release();
+                tokens.add(token);
+            }
+        }
+        this.persister.release(tokens);
+        for (Long token : tokens){
+            if (this.futures.containsKey(token) && !this.persisted(token)) this.evicted(token); //evicted in flight
+        }
+    }
+
+    /**
+     * Returns whether no message is in flight.
+     */
+    boolean isEmpty() {
+        return this.inFlight.isEmpty();
+    }
+
+    /**
+     * Releases locked messages in the persister.
+     */
+    void release(Collection<TokenizedObject> objects) {
+        if (objects.isEmpty()) return;
+        List<Long> tokens = new ArrayList<>(objects.size());
+        for (TokenizedObject to : objects){
+            tokens.add(to.token);
+        }
+        this.persister.release(tokens);
+    }
+
+    /**
+     * Registers the future to complete with the final status of the message.
+     */
+    void register(Long token, CompletableFuture<IotHubStatusCode> future) {
+        this.futures.put(token, future);
+    }
+
+    /**
+     * Passes the final status of a message to its future if it was published with publishAsync(), or otherwise
+     * to the callback.
+     */
+    void delivered(Long token, MessageContext ctx, Consumer<MessageContext> callback) {
+        CompletableFuture<IotHubStatusCode> future = token == null ? null : this.futures.remove(token);
+        if (future != null){
+            future.complete(ctx.getStatus());
+        } else if (callback != null){
+            callback.accept(ctx);
+        }
+    }
+
+    /**
+     * Releases a message whose acknowledgement is retriable so that it is sent again. If it was evicted while in
+     * flight it will not be, so its future fails.
+     */
+    void retry(Long token) {
+        this.persister.release(token);
+        if (this.futures.containsKey(token) && !this.persisted(token)) this.evicted(token);
+    }
+
+    /**
+     * Fails the future of a message evicted from the persister to make room for messages of higher priority. A
+     * message in flight is settled by its acknowledgement instead.
+     */
+    void evicted(Long token) {
+        if (this.inFlight.containsKey(token)) return;
+        CompletableFuture<IotHubStatusCode> future = this.futures.remove(token);
+        if (future != null) future.completeExceptionally(new PersisterFullException("Message evicted from buffer"));
+    }
+
+    /**
+     * Fails the futures of every message that has no final status yet.
+     */
+    void failAll(Throwable cause) {
+        for (Long token : this.futures.keySet()){
+            CompletableFuture<IotHubStatusCode> future = this.futures.remove(token);
+            if (future != null) future.completeExceptionally(cause);
+        }
+    }
+
+    private boolean persisted(Long token) {
+        try {
+            this.persister.getByToken(token);
+            return true;
+        } catch (NoSuchElementException e){
+            return false;
+        }
+    }
+}
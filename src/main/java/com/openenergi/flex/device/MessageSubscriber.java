@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import com.openenergi.flex.message.Message;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Reactive Streams subscriber that publishes the messages it receives through a {@link RetryingClient}, with
+ * backpressure.
+ *
+ * Demand follows the room left in the client's buffer rather than the acknowledgements of the hub: messages are
+ * requested a few at a time while the buffer is below its high water mark, so that a slow hub does not hold
+ * back the upstream while there is room to buffer. Once the buffer reaches the high water mark no more messages
+ * are requested until it drains down to the low water mark (see {@link RetryingClient.Builder#withWaterMarks(Double, Double)}),
+ * so that the upstream slows down instead of filling the buffer and having messages evicted.
+ */
+public class MessageSubscriber implements Subscriber<Message> {
+    private static final Logger logger = Logger.getLogger("MessageSubscriber");
+    //requests made when room frees up are handed off here, so that the thread freeing it is not the one publishing
+    private static final ExecutorService requester = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "flex-subscriber");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final RetryingClient client;
+    private final Integer prefetch;
+    private final Runnable roomListener = () -> MessageSubscriber.requester.execute(this::replenish);
+    private Subscription subscription; //guarded by this
+    private long requested = 0; //requested but not received yet, guarded by this
+
+    /**
+     * @param client The client to publish through.
+     * @param prefetch Maximum number of messages requested but not received yet.
+     */
+    public MessageSubscriber(RetryingClient client, Integer prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("Should request at least one message at a time");
+        this.client = client;
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (subscription == null) throw new NullPointerException("Subscription should not be null");
+        synchronized (this) {
+            if (this.subscription != null) {
+                subscription.cancel(); //already subscribed
+                return;
+            }
+            this.subscription = subscription;
+        }
+        this.client.addRoomListener(this.roomListener);
+        this.replenish();
+    }
+
+    @Override
+    public void onNext(Message msg) {
+        if (msg == null) throw new NullPointerException("Message should not be null");
+        synchronized (this) {
+            if (this.requested > 0) this.requested--;
+        }
+        try {
+            if (!this.client.offer(msg).isAccepted()) logger.log(Level.WARNING, "Message not buffered: buffer full");
+        } catch (IllegalStateException e) {
+            logger.log(Level.WARNING, "Message not published: " + e.getMessage());
+        }
+        this.replenish();
+    }
+
+    /**
+     * Requests messages up to the prefetch, unless the buffer is above its high water mark. The request is made
+     * without holding the monitor, as a synchronous publisher delivers the messages from within it.
+     */
+    private void replenish() {
+        Subscription subscription;
+        long n;
+        synchronized (this) {
+            subscription = this.subscription;
+            if (subscription == null || this.client.isAboveHighWaterMark()) return;
+            n = this.prefetch - this.requested;
+            if (n <= 0) return;
+            this.requested += n;
+        }
+        subscription.request(n);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (t == null) throw new NullPointerException("Error should not be null");
+        logger.log(Level.WARNING, "Message stream failed: " + t.getMessage());
+        this.done();
+    }
+
+    @Override
+    public void onComplete() {
+        this.done();
+    }
+
+    private synchronized void done() {
+        this.subscription = null;
+        this.client.removeRoomListener(this.roomListener);
+    }
+
+    /**
+     * Stops receiving messages. Messages already received are still published.
+     */
+    public synchronized void cancel() {
+        if (this.subscription == null) return;
+        this.subscription.cancel();
+        this.done();
+    }
+}
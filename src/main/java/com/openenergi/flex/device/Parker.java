@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets a drainer thread park until there may be work for it. A wake that arrives while the thread is not
+ * parked is remembered, so it is never lost between checking for work and parking.
+ */
+class Parker {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeup = lock.newCondition();
+    private boolean signalled = false; //guarded by lock
+
+    /**
+     * Wakes the thread if it is parked, or makes its next park return immediately.
+     */
+    void wake(){
+        this.lock.lock();
+        try {
+            this.signalled = true;
+            this.wakeup.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Parks until woken or until the deadline passes.
+     * @param deadline Time in milliseconds since the epoch, or zero to wait until woken.
+     * @throws InterruptedException if the thread is interrupted while parked.
+     */
+    void park(long deadline) throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (!this.signalled){
+                if (deadline == 0){
+                    this.wakeup.await();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    this.wakeup.await(remaining, TimeUnit.MILLISECONDS);
+                }
+            }
+            this.signalled = false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+/**
+ * The outcome of offering a message to a {@link RetryingClient}: whether it was accepted into the buffer and,
+ * if so, its token in the persister.
+ */
+public class PublishResult {
+    public enum Status {
+        /**
+         * The message was buffered, and will be sent (or was sent directly).
+         */
+        ACCEPTED,
+
+        /**
+         * The buffer was full: the message was not buffered and will not be sent.
+         */
+        REJECTED
+    }
+
+    private static final PublishResult rejected = new PublishResult(Status.REJECTED, -1L);
+
+    private final Status status;
+    private final Long token;
+
+    private PublishResult(Status status, Long token) {
+        this.status = status;
+        this.token = token;
+    }
+
+    static PublishResult accepted(Long token) {
+        return new PublishResult(Status.ACCEPTED, token);
+    }
+
+    static PublishResult rejected() {
+        return PublishResult.rejected;
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    public boolean isAccepted() {
+        return this.status == Status.ACCEPTED;
+    }
+
+    /**
+     * Returns the token of the message in the persister, or -1 if it was rejected.
+     */
+    public Long getToken() {
+        return this.token;
+    }
+}
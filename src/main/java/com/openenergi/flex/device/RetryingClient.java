@@ -14,6 +14,8 @@
 
 package com.openenergi.flex.device;
 
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.Codec;
 import com.openenergi.flex.message.Message;
 import com.openenergi.flex.message.MessageContext;
 import com.openenergi.flex.message.Signal;
@@ -23,9 +25,16 @@ import com.openenergi.flex.persistence.PersisterFullException;
 import com.openenergi.flex.persistence.TokenizedObject;
 
 import java.io.IOException;
-import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A client that implements buffering behavior, prioritizing the transmission of
@@ -33,55 +42,266 @@ import java.util.function.Consumer;
  *
  * By default it buffers messages in memory during outages - this can be changed by
  * selecting a different persister in the constructor.
+ *
+ * The number of messages sent but not yet acknowledged is capped by an in-flight window, so that a
+ * recovered connection is not flooded with the whole buffer at once. Buffered messages are sent by one
+ * or more drainer threads sharing the window (see {@link Builder}).
+ *
+ * After retriable failures the client backs off exponentially, with jitter, and then probes the hub with a
+ * single message before sending freely again. Backoff state belongs to each client, so one device identity
+ * being throttled does not hold back the others.
+ *
+ * If the client tracks its connection (see {@link Client#onStateChange(Consumer)}), messages are only buffered
+ * while the connection is being reopened, and the messages in flight on the dead connection are sent again.
+ *
+ * When the buffer is full, new messages are admitted according to an {@link AdmissionPolicy}. Producers can
+ * follow the utilisation of the buffer, or be called back when it crosses high and low water marks, to slow down
+ * before messages are rejected.
+ *
+ * Use {@link #close(Duration)} to flush the buffer before the application stops.
  */
 public class RetryingClient implements Client{
-    private static AtomicLong backoffExpiration = new AtomicLong();
-    private static AtomicLong retryPeriod = new AtomicLong(2000L);
-    private static Long retryIncrement = 2000L;
-    private static final Long retryMax = 60000L;
-    private BufferDrainer drainer;
+    public static class Builder {
+        private Client client;
+        private Persister persister;
+        private Prioritizer prioritizer = new FFRPrioritizer();
+        private Integer inFlightWindow = RetryingClient.defaultInFlightWindow;
+        private Integer drainers = 1;
+        private Long backoffBase = RetryingClient.defaultBackoffBase;
+        private Long backoffMax = RetryingClient.defaultBackoffMax;
+        private Integer failureThreshold = 1;
+        private AdmissionPolicy admissionPolicy = AdmissionPolicy.DROP_LOWEST;
+        private Long blockTimeout = 1000L;
+        private Double lowWaterMark = 0.5;
+        private Double highWaterMark = 0.8;
+
+        /**
+         * @param client The client that sends the messages.
+         */
+        public Builder(Client client){
+            this.client = client;
+        }
+
+        /**
+         * @param persister Persister for buffered messages. Defaults to a MemoryPersister of 10000 messages.
+         */
+        public Builder withPersister(Persister persister){
+            this.persister = persister;
+            return this;
+        }
+
+        /**
+         * @param prioritizer Prioritizer for buffered messages (default: FFRPrioritizer).
+         */
+        public Builder withPrioritizer(Prioritizer prioritizer){
+            this.prioritizer = prioritizer;
+            return this;
+        }
+
+        /**
+         * @param inFlightWindow Maximum number of messages sent but not yet acknowledged (default: 1000).
+         */
+        public Builder withInFlightWindow(Integer inFlightWindow){
+            this.inFlightWindow = inFlightWindow;
+            return this;
+        }
+
+        /**
+         * @param drainers Number of threads sending buffered messages (default: 1).
+         */
+        public Builder withDrainers(Integer drainers){
+            this.drainers = drainers;
+            return this;
+        }
+
+        /**
+         * Sets the backoff after retriable failures. The n-th consecutive backoff is drawn at random between
+         * zero and min(max, base * 2^n) milliseconds.
+         * @param base Ceiling of the first backoff in milliseconds (default: 2000).
+         * @param max Largest ceiling of any backoff in milliseconds (default: 60000).
+         */
+        public Builder withBackoff(Long base, Long max){
+            this.backoffBase = base;
+            this.backoffMax = max;
+            return this;
+        }
+
+        /**
+         * @param failureThreshold Number of consecutive retriable failures after which the client stops sending
+         *                         and backs off (default: 1).
+         */
+        public Builder withFailureThreshold(Integer failureThreshold){
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * @param admissionPolicy What to do with new messages when the buffer is full (default: DROP_LOWEST).
+         */
+        public Builder withAdmissionPolicy(AdmissionPolicy admissionPolicy){
+            this.admissionPolicy = admissionPolicy;
+            return this;
+        }
+
+        /**
+         * @param blockTimeout How long the BLOCK admission policy waits for room in the buffer, in milliseconds
+         *                     (default: 1000).
+         */
+        public Builder withBlockTimeout(Long blockTimeout){
+            this.blockTimeout = blockTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the utilisations of the buffer at which the callbacks set with onHighWaterMark() and
+         * onLowWaterMark() are invoked.
+         * @param low Utilisation, between 0 and 1, at which the buffer is back to normal (default: 0.5).
+         * @param high Utilisation, between 0 and 1, at which producers should slow down (default: 0.8).
+         */
+        public Builder withWaterMarks(Double low, Double high){
+            this.lowWaterMark = low;
+            this.highWaterMark = high;
+            return this;
+        }
+
+        public RetryingClient build(){
+            if (this.inFlightWindow < 1) throw new IllegalArgumentException("In-flight window should be at least 1");
+            if (this.drainers < 1) throw new IllegalArgumentException("There should be at least one drainer");
+            if (this.lowWaterMark < 0 || this.highWaterMark > 1 || this.lowWaterMark >= this.highWaterMark) {
+                throw new IllegalArgumentException("Water marks should satisfy 0 <= low < high <= 1");
+            }
+            Persister persister = this.persister;
+            if (persister == null) persister = RetryingClient.defaultPersister(10000);
+            CircuitBreaker breaker = new CircuitBreaker(new Backoff(this.backoffBase, this.backoffMax), this.failureThreshold, RetryingClient.leaseTimeout);
+            RetryingClient client = new RetryingClient(this.client, persister, this.prioritizer, this.inFlightWindow, this.drainers, breaker);
+            client.admissionPolicy = this.admissionPolicy;
+            client.blockTimeout = this.blockTimeout;
+            client.lowWaterMark = this.lowWaterMark;
+            client.highWaterMark = this.highWaterMark;
+            return client;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("RetryingClient");
+    private static final Long defaultBackoffBase = 2000L;
+    private static final Long defaultBackoffMax = 60000L;
+    private static final Integer drainBatchSize = 100;
+    private static final Long leaseTimeout = 120000L; //release messages whose acknowledgement never arrives
+    private static final Integer defaultInFlightWindow = 1000;
+    private static final Long windowPollPeriod = 1000L;
+    private static final Long closePollPeriod = 20L;
+    private final List<BufferDrainer> drainers = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger busy = new AtomicInteger(0); //drainers holding a batch not yet all in flight
+    private volatile boolean closing = false; //no longer accepting messages
+    private volatile boolean stopped = false; //drainers stopped, persister closed
+    private AdmissionPolicy admissionPolicy = AdmissionPolicy.DROP_LOWEST;
+    private Long blockTimeout = 1000L;
+    private Double lowWaterMark = 0.5;
+    private Double highWaterMark = 0.8;
+    private final Object room = new Object(); //held while admitting a message, notified when room is freed
+    private final AtomicBoolean aboveHighWaterMark = new AtomicBoolean(false);
+    private Runnable highWaterMarkCallback;
+    private Runnable lowWaterMarkCallback;
+    private final List<Runnable> roomListeners = new CopyOnWriteArrayList<>(); //subscribers paused at the high water mark
+    private InFlightWindow window;
+    private CircuitBreaker breaker;
     private Consumer<MessageContext> callback;
+    private Consumer<ConnectionState> stateCallback;
+    private volatile boolean linkUp = true; //until the client reports otherwise
 
     Persister persister;
     Prioritizer prioritizer;
     Client client;
 
+    /**
+     * Publishes persisted messages in priority order. When there is nothing to send, or while backing off, the
+     * drainer parks until it is woken by the persister (a message became available), by a change of backoff
+     * or by the backoff expiring - it does not poll. Once a backoff expires a single message is sent as a probe,
+     * and the rest wait until it is acknowledged.
+     */
     private class BufferDrainer implements Runnable {
         private Persister persister;
         private Client client;
-        private AtomicLong sleepUntil = new AtomicLong(0);
+        private final Parker parker = new Parker();
 
         public BufferDrainer(Persister persister, Client client){
             this.persister = persister;
             this.client = client;
         }
 
-        public void setSleepUntil(Long until){
-            this.sleepUntil.set(until);
+        /**
+         * Wakes the drainer if it is parked, or makes its next park return immediately.
+         */
+        public void wake(){
+            this.parker.wake();
+        }
+
+        private void park(long deadline) throws InterruptedException {
+            this.parker.park(deadline);
         }
 
         public void run(){
-            while (true){
-                if (System.currentTimeMillis() < this.sleepUntil.get()){
-                    try {
-                        Thread.sleep(1000L);
+            try {
+                CircuitBreaker breaker = RetryingClient.this.breaker;
+                while (!RetryingClient.this.stopped){
+                    if (!RetryingClient.this.linkUp){
+                        this.park(0); //woken when the connection is back
                         continue;
-                    } catch (InterruptedException e) {
-                        return;
                     }
-                }
-                try {
-                    TokenizedObject to = this.persister.peekLock();
-                    this.client.publish((Message)to.data, new MessageContext(to.token));
-                } catch (NoSuchElementException ex){
+                    long until = breaker.openUntil();
+                    if (System.currentTimeMillis() < until){
+                        this.park(until);
+                        continue;
+                    }
+                    boolean probe = !breaker.isClosed();
+                    if (probe && !breaker.tryProbe()){
+                        //another probe is outstanding: wait for its outcome
+                        this.park(System.currentTimeMillis() + RetryingClient.windowPollPeriod);
+                        continue;
+                    }
+                    boolean sent;
+                    RetryingClient.this.busy.incrementAndGet();
                     try {
-                        Thread.sleep(1000L);
-                    } catch (InterruptedException e){
-                        return;
+                        sent = this.send(breaker, probe);
+                    } finally {
+                        RetryingClient.this.busy.decrementAndGet();
                     }
+                    if (!sent) this.park(0);
                 }
+            } catch (InterruptedException e){
+                return;
+            }
+        }
 
+        /**
+         * Sends a batch of the highest-priority messages, or a single one as a probe.
+         * @return Whether there was anything to send.
+         */
+        private boolean send(CircuitBreaker breaker, boolean probe) throws InterruptedException {
+            List<TokenizedObject> batch = this.persister.peekLock(probe ? 1 : RetryingClient.drainBatchSize);
+            if (batch.isEmpty()){
+                if (probe) breaker.cancelProbe();
+                return false;
             }
+            for (int i = 0; i < batch.size(); i++){
+                try {
+                    RetryingClient.this.window.acquire();
+                } catch (InterruptedException e){
+                    RetryingClient.this.window.release(batch.subList(i, batch.size()));
+                    throw e;
+                }
+                if ((!probe && !breaker.isClosed()) || !RetryingClient.this.linkUp || RetryingClient.this.stopped){
+                    //a retriable failure or a dead connection was reported mid-batch: hand the rest back
+                    RetryingClient.this.window.release();
+                    RetryingClient.this.window.release(batch.subList(i, batch.size()));
+                    break;
+                }
+                TokenizedObject to = batch.get(i);
+                RetryingClient.this.window.sent(to.token, this.client);
+                this.client.publish((Message)to.data, new MessageContext(to.token));
+            }
+            return true;
         }
     }
 
@@ -94,12 +314,7 @@ public class RetryingClient implements Client{
     }
 
     public RetryingClient(String hubUrl, String deviceId, String deviceKey, Integer bufferSize, BasicClient.Protocol protocol){
-        this.client = new BasicClient(hubUrl, deviceId, deviceKey, protocol);
-        this.prioritizer = new FFRPrioritizer();
-        this.persister = new MemoryPersister(bufferSize);
-        this.setPublishCallback();
-        this.drainer = new BufferDrainer(this.persister, this.client);
-        (new Thread(this.drainer)).start();
+        this(new BasicClient(hubUrl, deviceId, deviceKey, protocol), RetryingClient.defaultPersister(bufferSize));
     }
 
     public RetryingClient(Client client, Persister persister){
@@ -107,18 +322,64 @@ public class RetryingClient implements Client{
     }
 
     public RetryingClient(Client client, Persister persister, Prioritizer prioritizer){
+        this(client, persister, prioritizer, RetryingClient.defaultInFlightWindow, 1,
+                new CircuitBreaker(new Backoff(RetryingClient.defaultBackoffBase, RetryingClient.defaultBackoffMax), 1, RetryingClient.leaseTimeout));
+    }
+
+    private RetryingClient(Client client, Persister persister, Prioritizer prioritizer, Integer inFlightWindow, Integer drainers, CircuitBreaker breaker){
         this.client = client;
         this.persister = persister;
         this.prioritizer = prioritizer;
+        this.window = new InFlightWindow(persister, inFlightWindow, RetryingClient.leaseTimeout);
+        this.breaker = breaker;
         this.setPublishCallback();
-        this.drainer = new BufferDrainer(this.persister, this.client);
-        (new Thread(this.drainer)).start();
+        this.client.onStateChange(this::stateChanged);
+        for (int i = 0; i < drainers; i++){
+            BufferDrainer drainer = new BufferDrainer(this.persister, this.client);
+            this.drainers.add(drainer);
+            Thread thread = new Thread(drainer, "flex-drainer-" + i);
+            thread.setDaemon(true); //close() flushes the buffer, this does not hold up the JVM
+            this.threads.add(thread);
+            thread.start();
+        }
+        this.persister.onAvailable(this::wakeDrainers);
+        this.persister.onEvicted((Long token) -> {
+            this.window.evicted(token);
+            this.freed(); //evictions, roll-ups and coalescing free room too
+        });
+    }
+
+    private static Persister defaultPersister(Integer bufferSize){
+        return new MemoryPersister.Builder()
+                .withCapacity(bufferSize)
+                .withLeaseTimeout(RetryingClient.leaseTimeout)
+                .build();
+    }
+
+    private void wakeDrainers(){
+        for (BufferDrainer drainer : this.drainers){
+            drainer.wake();
+        }
+    }
+
+    /**
+     * Stops sending while the connection of the client is down. The messages in flight on a connection that is
+     * being reopened will never be acknowledged, so they are handed back at once rather than after the lease timeout.
+     */
+    private void stateChanged(ConnectionState state){
+        this.linkUp = state.canSend();
+        if (state == ConnectionState.RECONNECTING) this.window.reclaim();
+        if (this.linkUp) this.wakeDrainers();
+        Consumer<ConnectionState> callback = this.stateCallback;
+        if (callback != null) callback.accept(state);
     }
 
     private void setPublishCallback(){
         this.client.onPublish((MessageContext ctx) -> {
+            if (this.stopped) return; //the message stays in the persister
             Long token;
             token = (Long) ctx.getData();
+            this.window.acknowledged(token);
             switch (ctx.getStatus()){
                 case HUB_OR_DEVICE_ID_NOT_FOUND:
                 case BAD_FORMAT:
@@ -128,23 +389,27 @@ public class RetryingClient implements Client{
                 case UNAUTHORIZED:
                     //not retriable
                     //TODO(mbironneau): log error and/or throw exception
-                    resetRetryInterval();
-                    if (this.callback != null) this.callback.accept(ctx);
+                    if (this.breaker.success()) this.wakeDrainers(); //the hub has recovered
                     this.persister.delete(token);
+                    this.freed();
+                    this.window.delivered(token, ctx, this.callback);
                     return;
                 case OK:
                     //great
-                    resetRetryInterval();
-                    if (this.callback != null) this.callback.accept(ctx);
+                    if (this.breaker.success()) this.wakeDrainers(); //the hub has recovered
                     this.persister.delete(token);
+                    this.freed();
+                    this.window.delivered(token, ctx, this.callback);
                     return;
                 case THROTTLED:
                 case SERVER_BUSY:
                 case INTERNAL_SERVER_ERROR:
                 case TOO_MANY_DEVICES:
+                case ERROR:
                     //retriable - release the message for retrying
-                    backOff();
-                    this.persister.release(token);
+                    this.breaker.failure();
+                    this.window.retry(token);
+                    this.wakeDrainers();
                     return;
                 default:
                     //TODO(mbironneau): log
@@ -153,96 +418,215 @@ public class RetryingClient implements Client{
                     //from filling up if messages are going through,
                     //delete the message from the persister.
                     this.persister.delete(token);
+                    this.freed();
+                    this.window.delivered(token, ctx, this.callback);
 
             }
         });
     }
 
-    /**
-     * If there is no active backoff, create one and increment the retry interval.
-     */
-    private void backOff(){
-        if (RetryingClient.backoffExpiration.get() < System.currentTimeMillis()) {
-            RetryingClient.backoffExpiration.set(System.currentTimeMillis() + RetryingClient.retryPeriod.get());
-        }
-        incrementRetryInterval();
-        this.drainer.setSleepUntil(RetryingClient.backoffExpiration.get());
+    @Override
+    public void connect() throws IOException {
+        this.client.connect();
     }
 
     /**
-     * Increment the retry interval by the retry increment and cap this to the max retry interval.
+     * Disconnects from the IotHub. Idempotent.
      */
-    private static void incrementRetryInterval(){
-        Long currentInterval = RetryingClient.retryPeriod.get();
-        if (currentInterval < RetryingClient.retryMax){
-            currentInterval += RetryingClient.retryIncrement;
-            if (currentInterval > RetryingClient.retryMax) currentInterval = RetryingClient.retryMax;
-        }
-        RetryingClient.retryPeriod.set(currentInterval);
+    @Override
+    public void disconnect() {
+       this.client.disconnect();
+    }
+
+    @Override
+    public void publish(Message msg) {
+        this.offer(msg);
     }
 
     /**
-     * Reset the retry period to its minimum value (the retry increment).
+     * Attempt to publish message and return token to persisted message. This token can
+     * be used to retrieve the message from the client's Persister.
+     *
+     * While backing off or probing the hub after a backoff, or while the in-flight window is full,
+     * the message is only persisted, unlocked, and a drainer sends it later.
+     * @param msg Message to publish
+     * @return Token to persisted message, or -1 if the message was rejected as the buffer is full.
      */
-    private static void resetRetryInterval(){
-        RetryingClient.retryPeriod.set(RetryingClient.retryIncrement);
+    public Long publishAndGetToken(Message msg){
+        return this.offer(msg).getToken();
     }
 
-
-
-
-
-    @Override
-    public void connect() throws IOException {
-        this.client.connect();
+    /**
+     * Publishes the message as for publish(), and returns whether it was accepted into the buffer according to
+     * the admission policy.
+     * @param msg Message to publish
+     * @return Whether the message was accepted and its token.
+     */
+    public PublishResult offer(Message msg){
+        return this.publish(msg, (CompletableFuture<IotHubStatusCode>) null);
     }
 
     /**
-     * Disconnects from the IotHub. Idempotent.
+     * Publishes the message and returns a future completed with its final status: once the hub has accepted it,
+     * or rejected it with a status that is not retriable. Retriable failures are retried as for publish(). The
+     * future completes exceptionally with a PersisterFullException if the message could not be buffered, or
+     * was evicted from the buffer to make room for messages of higher priority.
+     * @param msg Message to publish
+     * @return Future of the final status
      */
     @Override
-    public void disconnect() {
-       this.client.disconnect();
+    public CompletableFuture<IotHubStatusCode> publishAsync(Message msg){
+        CompletableFuture<IotHubStatusCode> future = new CompletableFuture<>();
+        this.publish(msg, future);
+        return future;
     }
 
-    @Override
-    public void publish(Message msg) {
-        Long token = -1L;
+    private PublishResult publish(Message msg, CompletableFuture<IotHubStatusCode> future){
+        if (this.closing){
+            IllegalStateException e = new IllegalStateException("Client is closed");
+            if (future == null) throw e;
+            future.completeExceptionally(e);
+            return PublishResult.rejected();
+        }
 
+        msg.encode(this.client.getCodec()); //so that retries do not serialize the message again
+
+        Long token;
+        boolean direct = false;
         try {
-            token = this.persister.put(msg, this.prioritizer.score(msg), true);
+            if (this.admissionPolicy == AdmissionPolicy.DROP_LOWEST){
+                //only publish the message directly if the connection and the hub are healthy and there is room in the window
+                direct = this.linkUp && this.breaker.isClosed() && this.window.tryAcquire();
+                //a message with a future is locked until the future is registered, so that no drainer can send it before
+                token = this.persister.put(msg, this.prioritizer.score(msg), direct || future != null);
+            } else {
+                //room is checked and taken under one lock, so that concurrent producers cannot overfill the buffer
+                synchronized (this.room){
+                    this.admit();
+                    direct = this.linkUp && this.breaker.isClosed() && this.window.tryAcquire();
+                    token = this.persister.put(msg, this.prioritizer.score(msg), direct || future != null);
+                }
+            }
         } catch (PersisterFullException e) {
-            e.printStackTrace(); //TODO(mbironneau): log
+            if (direct) this.window.release();
+            if (future != null) future.completeExceptionally(e);
+            logger.log(Level.WARNING, "Message rejected: " + e.getMessage());
+            return PublishResult.rejected();
         }
+        this.checkHighWaterMark();
 
-        if (System.currentTimeMillis() >= RetryingClient.backoffExpiration.get()) {
-            //only publish the message if we are not backing off
+        if (future != null) {
+            this.window.register(token, future);
+            if (!direct) this.persister.release(token);
+        }
+
+        if (direct) {
+            this.window.sent(token, this.client);
             this.client.publish(msg, new MessageContext(token));
         }
 
+        return PublishResult.accepted(token);
     }
 
     /**
-     * Attempt to publish message and return token to persisted message. This token can
-     * be used to retrieve the message from the client's Persister.
-     * @param msg Message to publish
-     * @return Token to persisted message.
+     * Applies the admission policy before a message is put in the persister. Must hold the room monitor.
+     * @throws PersisterFullException if the message should be rejected.
      */
-    public Long publishAndGetToken(Message msg){
-        Long token = -1L;
-
-        try {
-            token = this.persister.put(msg, this.prioritizer.score(msg), true);
-        } catch (PersisterFullException e) {
-            e.printStackTrace(); //TODO(mbironneau): log
+    private void admit() throws PersisterFullException {
+        switch (this.admissionPolicy){
+            case REJECT:
+                if (this.persister.utilisation() >= 1.0) throw new PersisterFullException("Buffer full");
+                return;
+            case BLOCK:
+                long deadline = System.currentTimeMillis() + this.blockTimeout;
+                while (this.persister.utilisation() >= 1.0){
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new PersisterFullException("Buffer still full after " + this.blockTimeout + "ms");
+                    try {
+                        this.room.wait(remaining);
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new PersisterFullException("Interrupted while waiting for room in the buffer");
+                    }
+                }
+                return;
+            default:
+                //the persister evicts messages of lower priority
         }
+    }
 
-        if (System.currentTimeMillis() >= RetryingClient.backoffExpiration.get()) {
-            //only publish the message if we are not backing off
-            this.client.publish(msg, new MessageContext(token));
+    /**
+     * Called after messages are deleted or evicted from the persister: wakes producers waiting for room and
+     * invokes the low water mark callback if the buffer has drained below it.
+     */
+    private void freed(){
+        if (this.admissionPolicy == AdmissionPolicy.BLOCK){
+            synchronized (this.room){
+                this.room.notifyAll();
+            }
+        }
+        if (!this.aboveHighWaterMark.get() || this.persister.utilisation() > this.lowWaterMark) return;
+        if (!this.aboveHighWaterMark.compareAndSet(true, false)) return;
+        Runnable callback = this.lowWaterMarkCallback;
+        if (callback != null) callback.run();
+        for (Runnable listener : this.roomListeners){
+            listener.run();
         }
+    }
+
+    private void checkHighWaterMark(){
+        if (this.aboveHighWaterMark.get()) return;
+        if (this.highWaterMarkCallback == null && this.lowWaterMarkCallback == null && this.roomListeners.isEmpty()) return;
+        if (this.persister.utilisation() < this.highWaterMark) return;
+        Runnable callback = this.highWaterMarkCallback;
+        if (this.aboveHighWaterMark.compareAndSet(false, true) && callback != null) callback.run();
+    }
+
+    /**
+     * Returns whether the buffer has reached the high water mark and not drained down to the low water mark since.
+     */
+    boolean isAboveHighWaterMark(){
+        return this.aboveHighWaterMark.get();
+    }
 
-        return token;
+    /**
+     * Adds a Lambda to invoke when the buffer drains down to the low water mark, alongside the callback set with
+     * onLowWaterMark(). Used by {@link MessageSubscriber}.
+     */
+    void addRoomListener(Runnable listener){
+        this.roomListeners.add(listener);
+    }
+
+    /**
+     * Removes a Lambda added with addRoomListener().
+     */
+    void removeRoomListener(Runnable listener){
+        this.roomListeners.remove(listener);
+    }
+
+    /**
+     * Returns how full the buffer is, from 0 to 1 (see {@link Persister#utilisation()}).
+     */
+    public double getUtilisation(){
+        return this.persister.utilisation();
+    }
+
+    /**
+     * Sets the Lambda to invoke when the utilisation of the buffer reaches the high water mark, eg. to reduce
+     * the sampling rate. It is not invoked again until the buffer has drained down to the low water mark.
+     * @param callback
+     */
+    public void onHighWaterMark(Runnable callback){
+        this.highWaterMarkCallback = callback;
+    }
+
+    /**
+     * Sets the Lambda to invoke when the utilisation of the buffer drains down to the low water mark, after
+     * having reached the high water mark.
+     * @param callback
+     */
+    public void onLowWaterMark(Runnable callback){
+        this.lowWaterMarkCallback = callback;
     }
 
     @Override
@@ -250,6 +634,67 @@ public class RetryingClient implements Client{
         System.out.println("Not implemented RetryingClient.publish");
     }
 
+    /**
+     * Shuts the client down gracefully. New messages are rejected with an IllegalStateException, and buffered
+     * messages keep being sent in priority order until they have all been acknowledged or the timeout expires.
+     * Then the drainers are stopped, the persister is closed - so that a persister with a durable store keeps the
+     * messages left for the next run - and the client is disconnected.
+     *
+     * Futures of messages left in the persister complete exceptionally with an IllegalStateException.
+     * @param timeout How long to keep sending buffered messages.
+     * @return Whether every buffered message was delivered before the timeout.
+     * @throws InterruptedException if the thread is interrupted while waiting, in which case the client is
+     * still shut down.
+     */
+    public boolean close(Duration timeout) throws InterruptedException {
+        this.closing = true;
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        boolean drained = false;
+        try {
+            while (!(drained = this.drained())){
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                Thread.sleep(Math.min(remaining, RetryingClient.closePollPeriod));
+            }
+        } finally {
+            this.stop();
+        }
+        return drained;
+    }
+
+    /**
+     * Returns whether no message is waiting to be sent or to be acknowledged. Messages held back by a backoff or
+     * a dead connection count as waiting.
+     */
+    private boolean drained(){
+        if (this.busy.get() > 0 || !this.window.isEmpty()) return false;
+        List<TokenizedObject> left = this.persister.peekLock(1);
+        if (left.isEmpty()) return true;
+        this.persister.release(left.get(0).token);
+        return false;
+    }
+
+    private synchronized void stop() throws InterruptedException {
+        if (this.stopped) return;
+        this.stopped = true;
+        for (Thread thread : this.threads){
+            thread.interrupt();
+        }
+        for (Thread thread : this.threads){
+            thread.join(RetryingClient.windowPollPeriod);
+        }
+
+        //messages in flight will not be acknowledged to this client: hand them back for the next run
+        this.window.reclaim();
+        this.window.failAll(new IllegalStateException("Client closed before the message was delivered"));
+
+        try {
+            this.persister.close();
+        } finally {
+            this.client.disconnect();
+        }
+    }
+
     @Override
     public void onPublish(Consumer<MessageContext> callback) {
         this.callback = callback;
@@ -264,4 +709,14 @@ public class RetryingClient implements Client{
     public void disableSubscription() {
         this.client.disableSubscription();
     }
+
+    @Override
+    public void onStateChange(Consumer<ConnectionState> callback) {
+        this.stateCallback = callback;
+    }
+
+    @Override
+    public Codec getCodec() {
+        return this.client.getCodec();
+    }
 }
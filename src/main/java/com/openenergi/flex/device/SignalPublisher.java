@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.device;
+
+import com.openenergi.flex.message.Signal;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactive Streams publisher of the signals received by a client. Each subscriber receives every signal
+ * received after it subscribed, as fast as it requests them.
+ *
+ * The hub cannot be asked to slow down, so signals that a subscriber has not requested yet are queued for it.
+ * Signals are infrequent, so the queue is not bounded.
+ */
+public class SignalPublisher implements Publisher<Signal<?>> {
+    private final CopyOnWriteArrayList<SignalSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribes to the signals of the client. This replaces any callback set with onSignal().
+     * @param client The client receiving the signals.
+     */
+    public SignalPublisher(Client client) {
+        client.onSignal(this::publish);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Signal<?>> subscriber) {
+        if (subscriber == null) throw new NullPointerException("Subscriber should not be null");
+        SignalSubscription subscription = new SignalSubscription(subscriber);
+        this.subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private void publish(Signal<?> signal) {
+        for (SignalSubscription subscription : this.subscriptions) {
+            subscription.queue.offer(signal);
+            subscription.drain();
+        }
+    }
+
+    private class SignalSubscription implements Subscription {
+        final Subscriber<? super Signal<?>> subscriber;
+        final ConcurrentLinkedQueue<Signal<?>> queue = new ConcurrentLinkedQueue<>();
+        final AtomicLong demand = new AtomicLong(0L);
+        final AtomicInteger work = new AtomicInteger(0); //so that only one thread at a time delivers signals
+        volatile boolean cancelled = false;
+
+        SignalSubscription(Subscriber<? super Signal<?>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                this.cancel();
+                this.subscriber.onError(new IllegalArgumentException("Should request a positive number of signals"));
+                return;
+            }
+            this.demand.getAndUpdate((long d) -> d + n < 0 ? Long.MAX_VALUE : d + n); //demand saturates
+            this.drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            SignalPublisher.this.subscriptions.remove(this);
+            this.queue.clear();
+        }
+
+        /**
+         * Delivers queued signals while there is demand. Calls arriving while another thread is delivering make
+         * that thread go round again, so signals are delivered serially and none is left behind.
+         */
+        void drain() {
+            if (this.work.getAndIncrement() != 0) return;
+            do {
+                while (!this.cancelled && this.demand.get() > 0) {
+                    Signal<?> signal = this.queue.poll();
+                    if (signal == null) break;
+                    if (this.demand.get() != Long.MAX_VALUE) this.demand.decrementAndGet();
+                    this.subscriber.onNext(signal);
+                }
+            } while (this.work.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ * 
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""), 
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT 
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.message;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serializes messages to CBOR with a mapper configured like the JSON one, so that both hold the same properties
+ * and values (eg. dates are strings in the same format).
+ */
+final class CborCodec implements Codec {
+    private static final Logger logger = Logger.getLogger("CborCodec");
+    private static final int BREAK = 0xFF;
+    private static final int INDEFINITE_ARRAY = 0x9F;
+
+    private final CBORFactory factory = new CBORFactory();
+    private final ObjectMapper mapper = Message.getMapper(this.factory);
+
+    @Override
+    public String getName() {
+        return "cbor";
+    }
+
+    @Override
+    public byte[] serialize(Message msg) {
+        try {
+            return this.mapper.writeValueAsBytes(msg);
+        } catch (JsonProcessingException e) {
+            logger.log(Level.WARNING, "Could not serialize message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] payload) throws IOException {
+        return Message.deserialize(payload, this.factory);
+    }
+
+    /**
+     * Packs the payloads into an array of indefinite length, so that they are written as they are.
+     */
+    @Override
+    public byte[] pack(List<byte[]> payloads) {
+        int bytes = 2;
+        for (byte[] payload : payloads) {
+            bytes += payload.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes);
+        out.write(CborCodec.INDEFINITE_ARRAY);
+        for (byte[] payload : payloads) {
+            out.write(payload, 0, payload.length);
+        }
+        out.write(CborCodec.BREAK);
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+}
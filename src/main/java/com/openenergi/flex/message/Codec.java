@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ * 
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""), 
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT 
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Serializes messages to bytes and back. JSON is the format of the message specification (see Messages.md); CBOR
+ * holds the same data in a compact binary form, which saves bandwidth on metered links and space in persisters.
+ *
+ * Clients send the name of their codec in the flex-content-type property of every message that is not JSON.
+ */
+public interface Codec {
+    /**
+     * UTF-8 encoded JSON, as in the message specification.
+     */
+    Codec JSON = new JsonCodec();
+
+    /**
+     * Concise Binary Object Representation (RFC 7049) of the same data as JSON.
+     */
+    Codec CBOR = new CborCodec();
+
+    /**
+     * Returns the name of the codec, sent in the flex-content-type property of messages (eg. "cbor").
+     */
+    String getName();
+
+    /**
+     * Returns the message serialized with the codec, or null if it cannot be serialized.
+     */
+    byte[] serialize(Message msg);
+
+    /**
+     * Returns the message (or batch of readings) serialized in the payload.
+     * @throws IOException Thrown if the payload is not a message serialized with the codec.
+     */
+    Object deserialize(byte[] payload) throws IOException;
+
+    /**
+     * Packs messages serialized with the codec into a single payload holding an array of them.
+     */
+    byte[] pack(List<byte[]> payloads);
+}
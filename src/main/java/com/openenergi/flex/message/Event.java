@@ -122,8 +122,16 @@ public class Event extends Message {
 		return Level.values()[this.level];
 	}
 
+	/**
+	 * Returns the numeric level, or null if it was never set (when getLevel() fails).
+	 */
+	Integer levelValue() {
+		return this.level;
+	}
+
 	public Event setLevel(Level level) {
 		this.level = level.valueOf();
+		this.modified();
 		return this;
 	}
 
@@ -133,6 +141,7 @@ public class Event extends Message {
 
 	public Event setValue(String value) {
 		this.value = value;
+		this.modified();
 		return this;
 	}
 
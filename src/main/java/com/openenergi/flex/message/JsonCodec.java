@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ * 
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""), 
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT 
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.message;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Serializes messages to UTF-8 encoded JSON, with the specialised encoder where it applies.
+ */
+final class JsonCodec implements Codec {
+    private static final JsonFactory factory = new JsonFactory();
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public byte[] serialize(Message msg) {
+        return msg.toJson();
+    }
+
+    @Override
+    public Object deserialize(byte[] payload) throws IOException {
+        return Message.deserialize(payload, JsonCodec.factory);
+    }
+
+    @Override
+    public byte[] pack(List<byte[]> payloads) {
+        int bytes = payloads.size() + 1; //brackets and commas
+        for (byte[] payload : payloads) {
+            bytes += payload.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes);
+        out.write('[');
+        for (int i = 0; i < payloads.size(); i++) {
+            if (i > 0) out.write(',');
+            byte[] payload = payloads.get(i);
+            out.write(payload, 0, payload.length);
+        }
+        out.write(']');
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+}
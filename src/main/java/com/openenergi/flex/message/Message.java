@@ -15,20 +15,28 @@
 package com.openenergi.flex.message;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class consists of properties and methods shared by all Flex messages. In the abstract a Flex message just contains a timestamp, entity
@@ -45,21 +53,43 @@ public class Message {
 	@JsonInclude(JsonInclude.Include.NON_NULL)
 	private String entity;
 	private String type;
-	private static final ObjectMapper mapper = getMapper();
 
-	private static final HashMap<String, TypeReference<?>> messageTypes = new HashMap<String, TypeReference<?>>(){{
-		put("readings", new TypeReference<Reading>(){});
-		put("events", new TypeReference<Event>(){});
-		put("schedules", new TypeReference<Schedule>(){});
-		put("signals", new TypeReference<Signal<SignalBatchList>>(){});
+	@JsonIgnore
+	private transient volatile Encoding encoded;
+
+	/**
+	 * The bytes of a message kept by encode(), and the codec they were serialized with.
+	 */
+	private static final class Encoding {
+		final Codec codec;
+		final byte[] bytes;
+
+		Encoding(Codec codec, byte[] bytes) {
+			this.codec = codec;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final ObjectMapper mapper = getMapper(new JsonFactory());
+
+	//readers are immutable and thread-safe, so they are built once per topic and shared
+	private static final ConcurrentHashMap<String, ObjectReader> messageTypes = new ConcurrentHashMap<String, ObjectReader>(){{
+		put("readings", mapper.readerFor(new TypeReference<Reading>(){}));
+		put("events", mapper.readerFor(new TypeReference<Event>(){}));
+		put("schedules", mapper.readerFor(new TypeReference<Schedule>(){}));
+		put("signals", mapper.readerFor(new TypeReference<Signal<SignalBatchList>>(){}));
 		//Deprecated as of Message Format Spec 2.0.0.
-		//put("batch-signals", new TypeReference<Signal<SignalBatchList>>(){});
-		put("schedule-signals", new TypeReference<Signal<SignalScheduleItem>>(){});
+		//put("batch-signals", mapper.readerFor(new TypeReference<Signal<SignalBatchList>>(){}));
+		put("schedule-signals", mapper.readerFor(new TypeReference<Signal<SignalScheduleItem>>(){}));
 	}};
 
-	private static ObjectMapper getMapper(){
+	/**
+	 * Returns a mapper to the given format (eg. JSON or CBOR), configured like the others so that every format
+	 * holds the same data.
+	 */
+	static ObjectMapper getMapper(JsonFactory factory){
 		DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-		ObjectMapper mapper = new ObjectMapper();
+		ObjectMapper mapper = new ObjectMapper(factory);
 		mapper.setDateFormat(df);
 		mapper.registerModule(new JavaTimeModule());
 		mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
@@ -85,16 +115,19 @@ public class Message {
 
 	public void setCreatedAt(Date createdAt) {
 		this.createdAt = createdAt;
+		this.modified();
 	}
 
 	public Message(){}
 	
 	public void setType(String value){
 		this.type = value;
+		this.modified();
 	}
 	
 	public void setEntity(String value){
 		this.entity = value;
+		this.modified();
 	}
 
 	public String getEntity() {
@@ -107,6 +140,7 @@ public class Message {
 
 	public void setTimestamp(Long timestamp) {
 		this.timestamp = timestamp;
+		this.modified();
 	}
 
 	public String getType() {
@@ -138,17 +172,183 @@ public class Message {
 		}
 	}
 	
+	/**
+	 * Serializes the message using JSON, encoded as UTF-8. If the message has been encoded to JSON with encode(),
+	 * the bytes kept then are returned instead of serializing it again.
+	 *
+	 * Readings, events and reading batches are serialized by a specialised encoder, which produces the same JSON as
+	 * toString().
+	 */
+	public byte[] toBytes() {
+		return this.toBytes(Codec.JSON);
+	}
+
+	/**
+	 * Serializes the message with the given codec. If the message has been encoded with the same codec, the bytes
+	 * kept then are returned instead of serializing it again.
+	 */
+	public byte[] toBytes(Codec codec) {
+		Encoding encoded = this.encoded;
+		if (encoded != null && encoded.codec == codec) return encoded.bytes;
+		if (this.timestamp == null){
+			this.timestamp = System.currentTimeMillis();
+		}
+		return codec.serialize(this);
+	}
+
+	/**
+	 * Serializes the message to JSON, without looking at the bytes kept by encode().
+	 */
+	byte[] toJson() {
+		byte[] encoded = MessageEncoder.encode(this);
+		if (encoded != null) return encoded;
+		try {
+			return mapper.writeValueAsBytes(this);
+		} catch (JsonProcessingException e){
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Serializes the message once and keeps the bytes, so that sending or storing it again (eg. when retrying it)
+	 * does not serialize it again. Setting a field of the message discards the bytes, but objects it holds (eg. the
+	 * items of a schedule) should not be modified afterwards, as the changes would not be sent.
+	 * @return The message serialized using JSON, encoded as UTF-8.
+	 */
+	public byte[] encode() {
+		return this.encode(Codec.JSON);
+	}
+
+	/**
+	 * Serializes the message once with the given codec and keeps the bytes, replacing any kept for another codec.
+	 * @return The message serialized with the codec.
+	 */
+	public byte[] encode(Codec codec) {
+		Encoding encoded = this.encoded;
+		if (encoded == null || encoded.codec != codec) {
+			encoded = new Encoding(codec, this.toBytes(codec));
+			this.encoded = encoded;
+		}
+		return encoded.bytes;
+	}
+
+	/**
+	 * Discards the bytes kept by encode(), as the message has changed. Setters of subclasses should call it.
+	 */
+	protected void modified() {
+		this.encoded = null;
+	}
+
+	/**
+	 * Returns the time zone in which the mapper writes dates.
+	 */
+	static TimeZone dateTimeZone() {
+		return mapper.getSerializationConfig().getDateFormat().getTimeZone();
+	}
+
+	/**
+	 * Deserializes a message encoded as UTF-8. The message keeps the bytes it was deserialized from, as if encode()
+	 * had been called, so it can be sent again without serializing it.
+	 */
+	public static Object deserialize(byte[] json) throws IOException, IllegalArgumentException {
+		return Message.deserialize(json, Codec.JSON);
+	}
+
+	/**
+	 * Deserializes a message serialized with the given codec. The message keeps the bytes it was deserialized from,
+	 * as if encode(codec) had been called.
+	 */
+	public static Object deserialize(byte[] payload, Codec codec) throws IOException, IllegalArgumentException {
+		Object msg = codec.deserialize(payload);
+		if (msg instanceof Message) ((Message) msg).encoded = new Encoding(codec, payload);
+		return msg;
+	}
+
+	/**
+	 * Deserializes a message from a format read by the given factory (eg. JSON or CBOR).
+	 */
+	static Object deserialize(byte[] payload, JsonFactory factory) throws IOException {
+		try (JsonParser p = factory.createParser(payload)) {
+			return deserialize(p);
+		}
+	}
+
 	public static Object deserialize(String json) throws IOException, IllegalArgumentException {
-		String topic;
-		JsonNode root;
-		root = mapper.readTree(json);
-		topic = root.get("topic").asText();
+		try (JsonParser p = mapper.getFactory().createParser(json)) {
+			return deserialize(p);
+		}
+	}
+
+	/**
+	 * Reads a single message, or a batch of readings sent as a JSON array.
+	 */
+	private static Object deserialize(JsonParser p) throws IOException {
+		JsonToken token = p.nextToken();
+		if (token == JsonToken.START_ARRAY){
+			return deserializeBatch(p);
+		}
+		if (token != JsonToken.START_OBJECT){
+			throw new IOException("Failed to deserialize: message is not a JSON object");
+		}
+		return deserializeObject(p);
+	}
+
+	/**
+	 * Reads a JSON array of readings into a ReadingBatch, with the device id of the first reading.
+	 */
+	private static ReadingBatch deserializeBatch(JsonParser p) throws IOException {
+		ReadingBatch.Builder builder = new ReadingBatch.Builder();
+		while (p.nextToken() == JsonToken.START_OBJECT){
+			Object msg = deserializeObject(p);
+			if (!(msg instanceof Reading)){
+				throw new IOException("Failed to deserialize: batches should only hold readings");
+			}
+			Reading reading = (Reading) msg;
+			if (reading.getTimestamp() == null || reading.getValue() == null){
+				throw new IOException("Failed to deserialize: readings of a batch should have a timestamp and a value");
+			}
+			if (builder.size() == 0) builder.withDeviceId(reading.getDeviceId());
+			try {
+				builder.add(reading.getEntity(), reading.getType(), reading.getTimestamp(), reading.getValue());
+			} catch (IllegalArgumentException e){
+				throw new IOException("Failed to deserialize: " + e.getMessage());
+			}
+		}
+		if (p.getCurrentToken() != JsonToken.END_ARRAY || builder.size() == 0){
+			throw new IOException("Failed to deserialize: batches should be non-empty arrays of readings");
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Binds a message in a single pass. The fields before the topic are buffered as tokens until the topic is known,
+	 * then replayed ahead of the rest of the input into the reader registered for that topic.
+	 */
+	private static Object deserializeObject(JsonParser p) throws IOException {
+		TokenBuffer head = new TokenBuffer(p);
+		head.writeStartObject();
+		String topic = null;
+		while (p.nextToken() == JsonToken.FIELD_NAME){
+			String field = p.getCurrentName();
+			p.nextToken();
+			head.writeFieldName(field);
+			if ("topic".equals(field)){
+				topic = p.getValueAsString();
+				head.copyCurrentEvent(p);
+				break;
+			}
+			head.copyCurrentStructure(p);
+		}
+		if (topic == null){
+			throw new IOException("Missing message topic - failed to deserialize");
+		}
 
-		if (!messageTypes.containsKey(topic)){
+		ObjectReader reader = messageTypes.get(topic);
+		if (reader == null){
 			throw new IOException("Unknown message topic - failed to deserialize: " + topic);
 		}
-		TypeReference<?> deserializer = messageTypes.get(topic);
-		return mapper.convertValue(root, deserializer);
+		return reader.readValue(JsonParserSequence.createFlattened(false, head.asParser(p), p));
 	}
 
 	/**
@@ -157,7 +357,7 @@ public class Message {
 	 * @param mappedType - a TypeReference to the class that the message will be mapped to
 	 */
 	public static void registerMessageMapper(String topic,  TypeReference<?> mappedType){
-		messageTypes.put(topic, mappedType);
+		messageTypes.put(topic, mapper.readerFor(mappedType));
 	}
 
 	public String getTopic() {
@@ -166,6 +366,7 @@ public class Message {
 
 	public void setTopic(String topic) {
 		this.topic = topic;
+		this.modified();
 	}
 
 	public String getDeviceId() {
@@ -174,6 +375,7 @@ public class Message {
 
 	public void setDeviceId(String deviceId) {
 		this.deviceId = deviceId;
+		this.modified();
 	}
 
 	public String getProvenance() {
@@ -182,5 +384,6 @@ public class Message {
 
 	public void setProvenance(String provenance) {
 		this.provenance = provenance;
+		this.modified();
 	}
 }
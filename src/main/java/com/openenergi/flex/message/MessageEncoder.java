@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.message;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Serializes readings, events and batches of readings straight to UTF-8 JSON in a reusable buffer, without
+ * reflection, intermediate Strings or date formatters. It produces the same bytes as the Jackson mapper of {@link Message}, which is
+ * used instead for any other class of message (including subclasses registered with registerMessageMapper())
+ * and for the rare values this encoder does not handle.
+ */
+final class MessageEncoder {
+    /**
+     * Thrown when a message has a value the encoder does not handle, so that it falls back to Jackson.
+     */
+    private static final class Unencodable extends RuntimeException {
+        private static final long serialVersionUID = -3108842957221633457L;
+
+        Unencodable() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Unencodable unencodable = new Unencodable();
+    private static final ThreadLocal<MessageEncoder> encoders = ThreadLocal.withInitial(MessageEncoder::new);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final int initialSize = 256;
+    private static final int maxRetainedSize = 64 * 1024; //larger buffers are not kept between messages
+    private static final long firstGregorianYearMillis = -12219292800000L; //1582-10-15, before which SimpleDateFormat is Julian
+
+    private final TimeZone zone = Message.dateTimeZone();
+    private byte[] buf = new byte[MessageEncoder.initialSize];
+    private int pos;
+
+    private MessageEncoder() {}
+
+    /**
+     * Returns the message serialized as UTF-8 JSON, or null if it should be serialized by Jackson instead.
+     */
+    static byte[] encode(Message msg) {
+        Class<?> type = msg.getClass();
+        if (type == ReadingBatch.class) return encoders.get().write((ReadingBatch) msg);
+        if (type != Reading.class && type != Event.class) return null;
+        return encoders.get().write(msg);
+    }
+
+    /**
+     * Writes the batch as a JSON array of readings, as Jackson writes the list of its readings.
+     */
+    private byte[] write(ReadingBatch batch) {
+        this.pos = 0;
+        try {
+            this.raw('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) this.raw(',');
+                this.raw('{');
+                this.name("topic", true);
+                this.string(batch.getTopic());
+                this.name("timestamp", false);
+                this.number(batch.timestampAt(i));
+                this.name("entity", false);
+                this.string(batch.entityAt(i));
+                this.name("type", false);
+                this.string(batch.typeAt(i));
+                this.name("value", false);
+                this.number(batch.valueAt(i));
+                if (batch.getDeviceId() != null) {
+                    this.name("devicecode", false);
+                    this.string(batch.getDeviceId());
+                }
+                this.raw('}');
+            }
+            this.raw(']');
+            return Arrays.copyOf(this.buf, this.pos);
+        } catch (Unencodable e) {
+            return null;
+        } finally {
+            if (this.buf.length > MessageEncoder.maxRetainedSize) this.buf = new byte[MessageEncoder.initialSize];
+        }
+    }
+
+    private byte[] write(Message msg) {
+        this.pos = 0;
+        try {
+            this.raw('{');
+            this.name("topic", true);
+            this.string(msg.getTopic());
+            this.name("timestamp", false);
+            if (msg.getTimestamp() == null) this.nul(); else this.number(msg.getTimestamp());
+            if (msg.getEntity() != null) {
+                this.name("entity", false);
+                this.string(msg.getEntity());
+            }
+            this.name("type", false);
+            this.string(msg.getType());
+            if (msg.getProvenance() != null) {
+                this.name("provenance", false);
+                this.string(msg.getProvenance());
+            }
+
+            if (msg instanceof Reading) {
+                this.reading((Reading) msg);
+            } else {
+                this.event((Event) msg);
+            }
+
+            //properties renamed with @JsonProperty come last
+            if (msg.getDeviceId() != null) {
+                this.name("devicecode", false);
+                this.string(msg.getDeviceId());
+            }
+            if (msg.getCreatedAt() != null) {
+                this.name("created_at", false);
+                this.date(msg.getCreatedAt());
+            }
+            this.raw('}');
+            return Arrays.copyOf(this.buf, this.pos);
+        } catch (Unencodable e) {
+            return null;
+        } finally {
+            if (this.buf.length > MessageEncoder.maxRetainedSize) this.buf = new byte[MessageEncoder.initialSize];
+        }
+    }
+
+    private void reading(Reading reading) {
+        this.name("value", false);
+        this.number(reading.getValue());
+        if (reading.getMin() != null) {
+            this.name("min", false);
+            this.number(reading.getMin());
+        }
+        if (reading.getMax() != null) {
+            this.name("max", false);
+            this.number(reading.getMax());
+        }
+        if (reading.getSamples() != null) {
+            this.name("samples", false);
+            this.number((long) reading.getSamples());
+        }
+    }
+
+    private void event(Event event) {
+        Integer level = event.levelValue();
+        if (level == null) throw MessageEncoder.unencodable; //Jackson fails on it, and so should we
+        this.name("level", false);
+        this.number((long) level);
+        this.name("value", false);
+        this.string(event.getValue());
+    }
+
+    private void name(String name, boolean first) {
+        if (!first) this.raw(',');
+        this.raw('"');
+        for (int i = 0; i < name.length(); i++) {
+            this.raw(name.charAt(i));
+        }
+        this.raw('"');
+        this.raw(':');
+    }
+
+    private void nul() {
+        this.raw('n');
+        this.raw('u');
+        this.raw('l');
+        this.raw('l');
+    }
+
+    private void string(String value) {
+        if (value == null) {
+            this.nul();
+            return;
+        }
+        this.ensure(value.length() * 6 + 2); //worst case: every character escaped in six bytes
+        this.buf[this.pos++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    this.buf[this.pos++] = (byte) c;
+                } else {
+                    this.escape(c);
+                }
+            } else if (c < 0x800) {
+                this.buf[this.pos++] = (byte) (0xC0 | (c >> 6));
+                this.buf[this.pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                this.buf[this.pos++] = (byte) (0xF0 | (cp >> 18));
+                this.buf[this.pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                this.buf[this.pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                this.buf[this.pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                throw MessageEncoder.unencodable; //split surrogate
+            } else {
+                this.buf[this.pos++] = (byte) (0xE0 | (c >> 12));
+                this.buf[this.pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                this.buf[this.pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.buf[this.pos++] = '"';
+    }
+
+    /**
+     * Escapes a character as Jackson does: quotes, backslashes and control characters, with the short form where
+     * there is one.
+     */
+    private void escape(char c) {
+        this.buf[this.pos++] = '\\';
+        switch (c) {
+            case '"': this.buf[this.pos++] = '"'; return;
+            case '\\': this.buf[this.pos++] = '\\'; return;
+            case '\b': this.buf[this.pos++] = 'b'; return;
+            case '\t': this.buf[this.pos++] = 't'; return;
+            case '\n': this.buf[this.pos++] = 'n'; return;
+            case '\f': this.buf[this.pos++] = 'f'; return;
+            case '\r': this.buf[this.pos++] = 'r'; return;
+            default:
+                this.buf[this.pos++] = 'u';
+                this.buf[this.pos++] = '0';
+                this.buf[this.pos++] = '0';
+                this.buf[this.pos++] = MessageEncoder.HEX[c >> 4];
+                this.buf[this.pos++] = MessageEncoder.HEX[c & 0xF];
+        }
+    }
+
+    private void number(Double value) {
+        if (value == null) {
+            this.nul();
+            return;
+        }
+        this.number(value.doubleValue());
+    }
+
+    private void number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) throw MessageEncoder.unencodable; //written as strings by Jackson
+        String s = Double.toString(value);
+        for (int i = 0; i < s.length(); i++) {
+            this.raw(s.charAt(i));
+        }
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            String s = Long.toString(value);
+            for (int i = 0; i < s.length(); i++) {
+                this.raw(s.charAt(i));
+            }
+            return;
+        }
+        this.ensure(20);
+        if (value < 0) {
+            this.buf[this.pos++] = '-';
+            value = -value;
+        }
+        int start = this.pos;
+        do {
+            this.buf[this.pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        //digits were written least significant first
+        for (int i = start, j = this.pos - 1; i < j; i++, j--) {
+            byte t = this.buf[i];
+            this.buf[i] = this.buf[j];
+            this.buf[j] = t;
+        }
+    }
+
+    /**
+     * Writes the date as the Jackson mapper does, ie. in the yyyy-MM-dd'T'HH:mm:ss.SSSZ format, in the time zone
+     * of the mapper.
+     */
+    private void date(Date date) {
+        long millis = date.getTime();
+        if (millis < MessageEncoder.firstGregorianYearMillis) throw MessageEncoder.unencodable;
+        int offset = this.zone.getOffset(millis);
+        long local = millis + offset;
+        long days = Math.floorDiv(local, 86400000L);
+        int ms = (int) Math.floorMod(local, 86400000L);
+
+        //civil date from days since the epoch, in the proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year > 9999) throw MessageEncoder.unencodable;
+
+        this.ensure(30);
+        this.raw('"');
+        this.digits((int) year, 4);
+        this.raw('-');
+        this.digits(month, 2);
+        this.raw('-');
+        this.digits(day, 2);
+        this.raw('T');
+        this.digits(ms / 3600000, 2);
+        this.raw(':');
+        this.digits(ms / 60000 % 60, 2);
+        this.raw(':');
+        this.digits(ms / 1000 % 60, 2);
+        this.raw('.');
+        this.digits(ms % 1000, 3);
+        int minutes = offset / 60000;
+        this.raw(minutes < 0 ? '-' : '+');
+        minutes = Math.abs(minutes);
+        this.digits(minutes / 60, 2);
+        this.digits(minutes % 60, 2);
+        this.raw('"');
+    }
+
+    private void digits(int value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            this.buf[this.pos + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        this.pos += width;
+    }
+
+    private void raw(char c) {
+        if (this.pos == this.buf.length) this.ensure(1);
+        this.buf[this.pos++] = (byte) c;
+    }
+
+    private void ensure(int bytes) {
+        if (this.pos + bytes <= this.buf.length) return;
+        this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.pos + bytes));
+    }
+}
@@ -14,8 +14,11 @@
 
 package com.openenergi.flex.message;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonValue;
 
+import java.util.List;
+
 /**
  * A Reading is an instantaneous measurement of a metric associated with an entity (eg power consumption).
  * 
@@ -132,12 +135,92 @@ public class Reading extends Message{
 
 	private Double value;
 
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Double min;
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Double max;
+
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Integer samples;
+
 	public Double getValue() {
 		return value;
 	}
 
 	public void setValue(Double value) {
 		this.value = value;
+		this.modified();
+	}
+
+	/**
+	 * Smallest value of the samples rolled up into this reading, or null if it is a single sample.
+	 */
+	public Double getMin() {
+		return min;
+	}
+
+	public void setMin(Double min) {
+		this.min = min;
+		this.modified();
+	}
+
+	/**
+	 * Largest value of the samples rolled up into this reading, or null if it is a single sample.
+	 */
+	public Double getMax() {
+		return max;
+	}
+
+	public void setMax(Double max) {
+		this.max = max;
+		this.modified();
+	}
+
+	/**
+	 * Number of samples rolled up into this reading, or null if it is a single sample.
+	 */
+	public Integer getSamples() {
+		return samples;
+	}
+
+	public void setSamples(Integer samples) {
+		this.samples = samples;
+		this.modified();
+	}
+
+	/**
+	 * Rolls up readings of the same entity and type into a single reading timestamped at the earliest of them. Its
+	 * value is the mean of the samples and it carries their minimum, maximum and count. Readings that are themselves
+	 * roll-ups are weighted by their number of samples.
+	 * @param readings Readings to combine, at least one
+	 * @return The aggregate reading
+	 */
+	public static Reading aggregate(List<Reading> readings){
+		Reading first = readings.get(0);
+		Reading aggregate = new Reading();
+		aggregate.setEntity(first.getEntity());
+		aggregate.setType(first.getType());
+		aggregate.setDeviceId(first.getDeviceId());
+		aggregate.setProvenance(first.getProvenance());
+
+		long timestamp = Long.MAX_VALUE;
+		double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		int samples = 0;
+		for (Reading reading : readings){
+			int n = reading.samples == null ? 1 : reading.samples;
+			timestamp = Math.min(timestamp, reading.getTimestamp());
+			sum += reading.value * n;
+			min = Math.min(min, reading.min == null ? reading.value : reading.min);
+			max = Math.max(max, reading.max == null ? reading.value : reading.max);
+			samples += n;
+		}
+		aggregate.setTimestamp(timestamp);
+		aggregate.setValue(sum / samples);
+		aggregate.setMin(min);
+		aggregate.setMax(max);
+		aggregate.setSamples(samples);
+		return aggregate;
 	}
 	
 	
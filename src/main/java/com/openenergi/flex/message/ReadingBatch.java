@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ * 
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""), 
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT 
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.message;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A batch of readings held in columns: a timestamp and a value for each reading, and the codes of its entity and
+ * type in dictionaries shared by the batch. It is published, persisted, prioritized and acknowledged as a single
+ * message, and sent as a JSON array of readings (see Messages.md).
+ *
+ * Batches carry the entity, type, timestamp and value of each reading, plus a device id common to all of them. Use
+ * separate readings for roll-ups (min, max and samples) or provenance. The CoalescingPersister and the aggregation
+ * of the MemoryPersister leave batches alone.
+ *
+ * Batches are built with a Builder that can be reused: once its arrays and dictionaries have grown to the size of a
+ * batch, adding readings to it allocates nothing.
+ */
+public class ReadingBatch extends Message {
+	public static class Builder {
+		private static final int initialCapacity = 64;
+
+		private final HashMap<String, Integer> entityCodes = new HashMap<>();
+		private final HashMap<String, Integer> typeCodes = new HashMap<>();
+		private String[] entities = new String[Builder.initialCapacity];
+		private String[] types = new String[8];
+		private long[] timestamps = new long[Builder.initialCapacity];
+		private double[] values = new double[Builder.initialCapacity];
+		private int[] entityIndex = new int[Builder.initialCapacity];
+		private int[] typeIndex = new int[Builder.initialCapacity];
+		private int size = 0;
+		private String deviceId;
+
+		/**
+		 * @param deviceId Device id of all the readings, used by the GatewayClient to route the batch (default: none).
+		 */
+		public Builder withDeviceId(String deviceId){
+			this.deviceId = deviceId;
+			return this;
+		}
+
+		public Builder add(String entity, Reading.Type type, long timestamp, double value){
+			return this.add(entity, type.getValue(), timestamp, value);
+		}
+
+		/**
+		 * Adds a reading to the batch being built.
+		 * @param entity Entity code of the reading
+		 * @param type Type of the reading
+		 * @param timestamp Milliseconds since the epoch
+		 * @param value Value of the reading
+		 */
+		public Builder add(String entity, String type, long timestamp, double value){
+			if (entity == null || type == null) throw new IllegalArgumentException("Readings of a batch should have an entity and a type");
+			if (this.size == this.timestamps.length){
+				int capacity = this.size * 2;
+				this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+				this.values = Arrays.copyOf(this.values, capacity);
+				this.entityIndex = Arrays.copyOf(this.entityIndex, capacity);
+				this.typeIndex = Arrays.copyOf(this.typeIndex, capacity);
+			}
+			this.timestamps[this.size] = timestamp;
+			this.values[this.size] = value;
+			this.entityIndex[this.size] = this.entityCode(entity);
+			this.typeIndex[this.size] = this.typeCode(type);
+			this.size++;
+			return this;
+		}
+
+		private int entityCode(String entity){
+			Integer code = this.entityCodes.get(entity);
+			if (code != null) return code;
+			code = this.entityCodes.size();
+			if (code == this.entities.length) this.entities = Arrays.copyOf(this.entities, code * 2);
+			this.entities[code] = entity;
+			this.entityCodes.put(entity, code);
+			return code;
+		}
+
+		private int typeCode(String type){
+			Integer code = this.typeCodes.get(type);
+			if (code != null) return code;
+			code = this.typeCodes.size();
+			if (code == this.types.length) this.types = Arrays.copyOf(this.types, code * 2);
+			this.types[code] = type;
+			this.typeCodes.put(type, code);
+			return code;
+		}
+
+		/**
+		 * Returns the number of readings added since the last batch was built.
+		 */
+		public int size(){
+			return this.size;
+		}
+
+		/**
+		 * Builds a batch of the readings added since the last one was built, and empties the builder. The
+		 * dictionaries of entities and types are kept, so that building the next batch of the same entities does not
+		 * allocate.
+		 * @throws IllegalStateException Thrown if no readings were added.
+		 */
+		public ReadingBatch build(){
+			if (this.size == 0) throw new IllegalStateException("A batch should hold at least one reading");
+			ReadingBatch batch = new ReadingBatch(
+					Arrays.copyOf(this.timestamps, this.size),
+					Arrays.copyOf(this.values, this.size),
+					Arrays.copyOf(this.entityIndex, this.size),
+					Arrays.copyOf(this.typeIndex, this.size),
+					Arrays.copyOf(this.entities, this.entityCodes.size()),
+					Arrays.copyOf(this.types, this.typeCodes.size()));
+			batch.setDeviceId(this.deviceId);
+			this.size = 0;
+			return batch;
+		}
+
+		/**
+		 * Empties the builder, including its dictionaries of entities and types.
+		 */
+		public void reset(){
+			this.size = 0;
+			this.entityCodes.clear();
+			this.typeCodes.clear();
+			Arrays.fill(this.entities, null);
+			Arrays.fill(this.types, null);
+		}
+	}
+
+	private final long[] timestamps;
+	private final double[] values;
+	private final int[] entityIndex;
+	private final int[] typeIndex;
+	private final String[] entities;
+	private final String[] types;
+
+	private ReadingBatch(long[] timestamps, double[] values, int[] entityIndex, int[] typeIndex, String[] entities, String[] types){
+		this.timestamps = timestamps;
+		this.values = values;
+		this.entityIndex = entityIndex;
+		this.typeIndex = typeIndex;
+		this.entities = entities;
+		this.types = types;
+		this.setTopic("readings");
+
+		//the batch is timestamped with its newest reading, and has a type only if all its readings share it
+		long newest = Long.MIN_VALUE;
+		int type = typeIndex[0];
+		for (int i = 0; i < timestamps.length; i++){
+			newest = Math.max(newest, timestamps[i]);
+			if (typeIndex[i] != type) type = -1;
+		}
+		this.setTimestamp(newest);
+		if (type >= 0) this.setType(types[type]);
+	}
+
+	/**
+	 * Returns the number of readings in the batch.
+	 */
+	public int size(){
+		return this.timestamps.length;
+	}
+
+	public long timestampAt(int i){
+		return this.timestamps[i];
+	}
+
+	public double valueAt(int i){
+		return this.values[i];
+	}
+
+	public String entityAt(int i){
+		return this.entities[this.entityIndex[i]];
+	}
+
+	public String typeAt(int i){
+		return this.types[this.typeIndex[i]];
+	}
+
+	/**
+	 * Returns true if any reading of the batch has the given type.
+	 */
+	public boolean hasType(String type){
+		int code = Arrays.asList(this.types).indexOf(type);
+		if (code < 0) return false;
+		for (int i = 0; i < this.typeIndex.length; i++){
+			if (this.typeIndex[i] == code) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the readings of the batch as separate Reading objects. This is how Jackson serializes the batch.
+	 */
+	@JsonValue
+	public List<Reading> toReadings(){
+		List<Reading> readings = new ArrayList<>(this.size());
+		for (int i = 0; i < this.size(); i++){
+			Reading reading = new Reading();
+			reading.setTimestamp(this.timestamps[i]);
+			reading.setEntity(this.entityAt(i));
+			reading.setType(this.typeAt(i));
+			reading.setValue(this.values[i]);
+			reading.setDeviceId(this.getDeviceId());
+			readings.add(reading);
+		}
+		return readings;
+	}
+
+}
@@ -75,6 +75,7 @@ public class Schedule extends Message {
 			this.schedule = new ArrayList<ScheduleItem>();
 		}
 		this.schedule.add(item);
+		this.modified();
 	}
 	
 	public ScheduleItem getItem(int index) throws IndexOutOfBoundsException{
@@ -87,5 +88,6 @@ public class Schedule extends Message {
 
 	public void setSchedule(List<ScheduleItem> schedule){
 		this.schedule = schedule;
+		this.modified();
 	}
 }
@@ -43,10 +43,12 @@ public class Signal<T extends Schedulable> extends Message {
 
 	public void setGeneratedAt(ZonedDateTime generatedAt) {
 		this.generatedAt = generatedAt;
+		this.modified();
 	}
 
 	public void setItems(List<T> items) {
 		this.items = items;
+		this.modified();
 	}
 
 	@JsonProperty("generated_at")
@@ -59,6 +61,7 @@ public class Signal<T extends Schedulable> extends Message {
 
 	public void setEntities(List<String> entities) {
 		this.entities = entities;
+		this.modified();
 	}
 
 	private List<String> entities;
@@ -97,6 +100,7 @@ public class Signal<T extends Schedulable> extends Message {
 	 */
 	public void sort(){
 		this.items.sort(Comparator.comparing(a -> a.getStart()));
+		this.modified();
 	}
 	
 	/**
@@ -107,6 +111,7 @@ public class Signal<T extends Schedulable> extends Message {
 	 */
 	public void addEntity(String entity){
 		this.entities.add(entity);
+		this.modified();
 	}
 	
 	/**
@@ -116,6 +121,7 @@ public class Signal<T extends Schedulable> extends Message {
 	 */
 	public void addItem(T item){
 		this.items.add(item);
+		this.modified();
 	}
 
 	/**
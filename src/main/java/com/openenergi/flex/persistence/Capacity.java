@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.persistence;
+
+import com.openenergi.flex.message.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how much of a persister is in use - as a number of messages, as a total of serialized bytes, as
+ * bytes per topic and as messages per device - and decides which entries to evict to make room for a new one.
+ *
+ * Eviction follows priority: a new entry may only evict entries of strictly lower priority, the lowest first.
+ * An entry whose topic has a quota only evicts entries of the same topic to stay within that quota, so a flood
+ * of one topic cannot push out another. Likewise, with a device quota an entry only evicts entries of its own
+ * device to stay within it, so one chatty or offline device cannot push out the others. If no set of evictions
+ * makes room, nothing is evicted.
+ */
+class Capacity {
+    private final Integer size;
+    private final Long byteBudget;
+    private final AtomicLong bytes = new AtomicLong(0L);
+    private final Integer deviceQuota;
+    private final Map<String, Partition> partitions = new HashMap<>();
+    private final ConcurrentHashMap<String, Partition> devices = new ConcurrentHashMap<>();
+
+    private static class Partition {
+        final Long quota;
+        final AtomicLong bytes = new AtomicLong(0L);
+        final AtomicInteger count = new AtomicInteger(0);
+        final NavigableSet<TokenizedObject> entries = new ConcurrentSkipListSet<>(TokenizedObject.PRIORITY_ORDER);
+
+        Partition(Long quota) {
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * @param size Maximum number of messages.
+     * @param byteBudget Maximum total serialized size of the messages in bytes, or null for no limit.
+     * @param quotas Maximum total serialized size of the messages of each topic, in bytes.
+     * @param deviceQuota Maximum number of messages of each device, or null for no limit.
+     */
+    Capacity(Integer size, Long byteBudget, Map<String, Long> quotas, Integer deviceQuota) {
+        if (size == 0) throw new IllegalArgumentException("Size should be at least 1");
+        if (byteBudget != null && byteBudget <= 0) throw new IllegalArgumentException("Byte budget should be positive");
+        if (deviceQuota != null && deviceQuota < 1) throw new IllegalArgumentException("Device quota should be at least 1");
+        this.size = size;
+        this.byteBudget = byteBudget;
+        this.deviceQuota = deviceQuota;
+        for (Map.Entry<String, Long> quota : quotas.entrySet()) {
+            if (quota.getValue() <= 0) throw new IllegalArgumentException("Quota for " + quota.getKey() + " should be positive");
+            this.partitions.put(quota.getKey(), new Partition(quota.getValue()));
+        }
+    }
+
+    Capacity(Integer size) {
+        this(size, null, Collections.<String, Long>emptyMap(), null);
+    }
+
+    /**
+     * Returns the maximum number of messages.
+     */
+    Integer size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the serialized size of the data, as used for the byte budget.
+     */
+    static long sizeOf(Object data) {
+        if (data instanceof byte[]) return ((byte[]) data).length;
+        if (data instanceof Message) return ((Message) data).toBytes().length;
+        return String.valueOf(data).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Returns the serialized size of the data if it counts towards a byte budget or quota, or zero otherwise
+     * so that messages are not serialized needlessly.
+     */
+    long measure(Object data, String topic) {
+        if (this.byteBudget == null && this.partitionOf(topic) == null) return 0L;
+        return sizeOf(data);
+    }
+
+    /**
+     * Returns the topic of the data if it is a message.
+     */
+    static String topicOf(Object data) {
+        return data instanceof Message ? ((Message) data).getTopic() : null;
+    }
+
+    /**
+     * Returns the device of the data if it is a message.
+     */
+    static String deviceOf(Object data) {
+        return data instanceof Message ? ((Message) data).getDeviceId() : null;
+    }
+
+    /**
+     * Whether any topic or device has a quota, i.e. whether entries need to know their topic and device.
+     */
+    boolean hasQuotas() {
+        return !this.partitions.isEmpty() || this.deviceQuota != null;
+    }
+
+    /**
+     * Total serialized size of the entries currently held, in bytes.
+     */
+    long bytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Returns the fraction of the capacity in use, by number of messages or by bytes, whichever is greater.
+     * @param count The number of entries currently held
+     */
+    double utilisation(int count) {
+        double used = (double) count / this.size;
+        if (this.byteBudget != null) used = Math.max(used, (double) this.bytes.get() / this.byteBudget);
+        return used;
+    }
+
+    void added(TokenizedObject to) {
+        this.bytes.addAndGet(to.bytes);
+        Partition partition = this.partitionOf(to.topic);
+        if (partition != null) {
+            partition.bytes.addAndGet(to.bytes);
+            partition.entries.add(to);
+        }
+        if (this.deviceQuota != null && to.device != null) {
+            Partition device = this.devices.computeIfAbsent(to.device, (String d) -> new Partition(null));
+            device.count.incrementAndGet();
+            device.entries.add(to);
+        }
+    }
+
+    void removed(TokenizedObject to) {
+        this.bytes.addAndGet(-to.bytes);
+        Partition partition = this.partitionOf(to.topic);
+        if (partition != null && partition.entries.remove(to)) {
+            partition.bytes.addAndGet(-to.bytes);
+        }
+        Partition device = to.device == null ? null : this.devices.get(to.device);
+        if (device != null && device.entries.remove(to)) {
+            device.count.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the entries that need to be evicted to store a new entry. Must not be called concurrently with
+     * itself, and the entries must be removed before the new one is stored.
+     * @param list All entries in priority order
+     * @param count The number of entries currently held
+     * @param priority Priority of the new entry
+     * @param bytes Serialized size of the new entry
+     * @param topic Topic of the new entry, or null
+     * @param deviceId Device of the new entry, or null
+     * @throws PersisterFullException if the entry does not fit even after evicting every entry of lower priority.
+     */
+    List<TokenizedObject> victims(NavigableSet<? extends TokenizedObject> list, int count, Long priority, long bytes, String topic, String deviceId) throws PersisterFullException {
+        Set<TokenizedObject> victims = new HashSet<>();
+        List<TokenizedObject> ordered = new ArrayList<>();
+        long freed = 0L;
+
+        Partition partition = this.partitionOf(topic);
+        if (partition != null) {
+            if (bytes > partition.quota) throw new PersisterFullException("Message larger than quota for " + topic);
+            Iterator<TokenizedObject> it = partition.entries.iterator();
+            long partitionFreed = 0L;
+            while (partition.bytes.get() - partitionFreed + bytes > partition.quota) {
+                TokenizedObject to = lowerThan(it, priority, victims, "Quota for " + topic + " full");
+                victims.add(to);
+                ordered.add(to);
+                partitionFreed += to.bytes;
+            }
+            freed = partitionFreed;
+        }
+
+        Partition device = deviceId == null || this.deviceQuota == null ? null : this.devices.get(deviceId);
+        if (device != null) {
+            int deviceFreed = 0;
+            for (TokenizedObject to : ordered) {
+                if (deviceId.equals(to.device)) deviceFreed++;
+            }
+            Iterator<TokenizedObject> it = device.entries.iterator();
+            while (device.count.get() - deviceFreed >= this.deviceQuota) {
+                TokenizedObject to = lowerThan(it, priority, victims, "Quota for device " + deviceId + " full");
+                victims.add(to);
+                ordered.add(to);
+                deviceFreed++;
+                freed += to.bytes;
+            }
+        }
+
+        if (this.byteBudget != null && bytes > this.byteBudget) throw new PersisterFullException("Message larger than byte budget");
+        Iterator<? extends TokenizedObject> it = list.iterator();
+        while (count - victims.size() >= this.size
+                || (this.byteBudget != null && this.bytes.get() - freed + bytes > this.byteBudget)) {
+            TokenizedObject to = lowerThan(it, priority, victims, "Buffer full");
+            victims.add(to);
+            ordered.add(to);
+            freed += to.bytes;
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns the next entry in ascending order that has not already been chosen.
+     * @throws PersisterFullException if there is no such entry of strictly lower priority.
+     */
+    private static TokenizedObject lowerThan(Iterator<? extends TokenizedObject> it, Long priority, Set<TokenizedObject> chosen, String reason) throws PersisterFullException {
+        while (it.hasNext()) {
+            TokenizedObject to = it.next();
+            if (chosen.contains(to)) continue;
+            if (to.priority >= priority) break;
+            return to;
+        }
+        throw new PersisterFullException(reason);
+    }
+
+    private Partition partitionOf(String topic) {
+        return topic == null ? null : this.partitions.get(topic);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.persistence;
+
+import com.openenergi.flex.message.Reading;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Wraps another persister so that only the newest readings of each entity and type are kept. When a reading
+ * is stored, the oldest stored readings with the same entity and type beyond the newest N are deleted. Readings
+ * of different devices (eg. behind a {@link com.openenergi.flex.device.GatewayClient}) are kept apart. Events,
+ * schedules and any other data are stored in full.
+ *
+ * During a long outage this makes the size of the backlog of readings proportional to the number of entities
+ * rather than to the length of the outage, and means the freshest data is sent first on recovery.
+ *
+ * A superseded reading is deleted before the new one is stored, so replacing a value never needs room in the
+ * wrapped persister, and is reported to the eviction listener once the new one is stored.
+ *
+ * Coalescing only applies to readings stored through this persister: readings recovered from disk by the
+ * wrapped persister are not coalesced.
+ */
+public class CoalescingPersister implements Persister {
+    private final Persister persister;
+    private final Integer keep;
+    private final ConcurrentHashMap<String, Deque<Long>> tokensByKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> keysByToken = new ConcurrentHashMap<>();
+    private volatile Consumer<Long> evictionListener;
+
+    /**
+     * Keeps only the newest reading of each entity and type.
+     * @param persister The persister to wrap
+     */
+    public CoalescingPersister(Persister persister) {
+        this(persister, 1);
+    }
+
+    /**
+     * Keeps only the newest readings of each entity and type.
+     * @param persister The persister to wrap
+     * @param keep The number of readings to keep for each entity and type
+     * @throws IllegalArgumentException Thrown if keep is zero.
+     */
+    public CoalescingPersister(Persister persister, Integer keep) throws IllegalArgumentException {
+        if (keep < 1) throw new IllegalArgumentException("Should keep at least one reading");
+        this.persister = persister;
+        this.keep = keep;
+        this.persister.onEvicted(this::evicted);
+    }
+
+    public Long put(Object data, Long priority, Boolean acquireLock) throws PersisterFullException {
+        if (!(data instanceof Reading)) return this.persister.put(data, priority, acquireLock);
+
+        Reading reading = (Reading) data;
+        String key = reading.getDeviceId() + '\u0000' + reading.getEntity() + '\u0000' + reading.getType();
+        Deque<Long> tokens = this.tokensByKey.computeIfAbsent(key, (String k) -> new ArrayDeque<>());
+        Long token;
+        TokenizedObject superseded = null;
+        synchronized (tokens) {
+            tokens.removeIf((Long t) -> !this.keysByToken.containsKey(t)); //evicted by the wrapped persister
+            if (tokens.size() >= this.keep) superseded = this.take(tokens.pollFirst());
+            try {
+                token = this.persister.put(data, priority, acquireLock);
+            } catch (PersisterFullException | RuntimeException e) {
+                if (superseded != null) this.restore(key, tokens, superseded);
+                throw e;
+            }
+            this.keysByToken.put(token, key);
+            tokens.addLast(token);
+        }
+        if (superseded != null) this.evicted(superseded.token);
+        return token;
+    }
+
+    /**
+     * Deletes a superseded reading from the wrapped persister. Must hold the monitor of its key.
+     * @return A copy of the reading, or null if it is already gone.
+     */
+    private TokenizedObject take(Long token) {
+        this.keysByToken.remove(token);
+        TokenizedObject to;
+        try {
+            to = this.persister.getByToken(token);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TokenizedObject copy = new TokenizedObject(to.token, to.data, to.priority, false);
+        this.persister.delete(token);
+        return copy;
+    }
+
+    /**
+     * Stores a superseded reading again after the reading meant to replace it could not be stored. It gets a new
+     * token, so the old one is reported as evicted. Must hold the monitor of its key.
+     */
+    private void restore(String key, Deque<Long> tokens, TokenizedObject superseded) {
+        try {
+            Long token = this.persister.put(superseded.data, superseded.priority, false);
+            this.keysByToken.put(token, key);
+            tokens.addFirst(token);
+        } catch (PersisterFullException | RuntimeException ignored) {
+            //lost along with the new reading
+        }
+        this.evicted(superseded.token);
+    }
+
+    public TokenizedObject peekLock() throws NoSuchElementException {
+        return this.persister.peekLock();
+    }
+
+    @Override
+    public List<TokenizedObject> peekLock(int max) {
+        return this.persister.peekLock(max);
+    }
+
+    public TokenizedObject getByToken(Long token) throws NoSuchElementException {
+        return this.persister.getByToken(token);
+    }
+
+    public void delete(Long token) {
+        this.forget(token);
+        this.persister.delete(token);
+    }
+
+    @Override
+    public void delete(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            this.forget(token);
+        }
+        this.persister.delete(tokens);
+    }
+
+    public void release(Long token) {
+        this.persister.release(token);
+    }
+
+    @Override
+    public void release(Collection<Long> tokens) {
+        this.persister.release(tokens);
+    }
+
+    @Override
+    public void onAvailable(Runnable listener) {
+        this.persister.onAvailable(listener);
+    }
+
+    @Override
+    public void onEvicted(Consumer<Long> listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Forgets a reading dropped by the wrapped persister, or superseded by a newer one, and passes its token on.
+     * Its key keeps the token until the next reading of that key is stored, so that no monitor is taken here.
+     */
+    private void evicted(Long token) {
+        this.keysByToken.remove(token);
+        Consumer<Long> listener = this.evictionListener;
+        if (listener != null) listener.accept(token);
+    }
+
+    @Override
+    public double utilisation() {
+        return this.persister.utilisation();
+    }
+
+    @Override
+    public void flush() {
+        this.persister.flush();
+    }
+
+    @Override
+    public void close() {
+        this.persister.close();
+    }
+
+    private void forget(Long token) {
+        String key = this.keysByToken.remove(token);
+        if (key == null) return;
+        Deque<Long> tokens = this.tokensByKey.get(key);
+        if (tokens == null) return;
+        synchronized (tokens) {
+            tokens.remove(token);
+        }
+    }
+}
@@ -0,0 +1,677 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.persistence;
+
+import com.openenergi.flex.message.Codec;
+import com.openenergi.flex.message.Message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persists messages on disk in an append-only log split into fixed-size, memory-mapped segment files.
+ *
+ * Each record is written as a header (status, length, token, priority, CRC32 of the rest of the header and of the
+ * payload) followed by the message serialized with the codec of the persister (JSON by default, see
+ * {@link Builder#withCodec(Codec)}). The status byte is written last, so a record that was torn by a crash is never
+ * recovered. Deleting a token flips the status byte of its record in place, and a segment file is removed
+ * once every record in it has been deleted.
+ *
+ * On construction the persister scans the existing segments in its directory and recovers every record that
+ * was not deleted, unlocked and in priority order. Only the token index is held in memory - message bodies are
+ * read back from the segment when they are locked for sending.
+ *
+ * Writes go to the page cache through the mapping and survive a process restart; they are forced to the
+ * device whenever a segment fills up and on {@link #flush()} or {@link #close()}.
+ *
+ * Optionally, locks can be given a lease timeout (see {@link Builder#withLeaseTimeout(Long)}) so that
+ * messages whose acknowledgement never arrives are eventually made available again.
+ */
+public class FilePersister implements Persister, Closeable {
+    public static class Builder {
+        private String directory;
+        private Integer size;
+        private Long byteBudget;
+        private Map<String, Long> quotas = new HashMap<>();
+        private Integer deviceQuota;
+        private Integer segmentSize = DEFAULT_SEGMENT_SIZE;
+        private Long leaseTimeout;
+        private Codec codec = Codec.JSON;
+
+        /**
+         * @param directory Directory holding the segment files (created if it does not exist).
+         */
+        public Builder(String directory){
+            this.directory = directory;
+        }
+
+        /**
+         * @param size Maximum capacity (in number of messages). Defaults to 10000, or to no limit if a byte
+         *             budget is given.
+         */
+        public Builder withCapacity(Integer size){
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * @param byteBudget Maximum capacity, as the total size of the live records on disk in bytes. Disk
+         *                   usage can exceed this by up to the segments pinned by a few live records.
+         */
+        public Builder withByteBudget(Long byteBudget){
+            this.byteBudget = byteBudget;
+            return this;
+        }
+
+        /**
+         * Limits the total size of the records of a topic (eg. "readings"). Once a topic is at its quota a new
+         * message of that topic can only evict lower-priority messages of the same topic.
+         * @param topic The message topic
+         * @param bytes The quota in bytes
+         */
+        public Builder withTopicQuota(String topic, Long bytes){
+            this.quotas.put(topic, bytes);
+            return this;
+        }
+
+        /**
+         * Limits the number of messages of each device (by deviceId), eg. when one persister is shared by the
+         * devices of a gateway. Once a device is at its quota a new message for that device can only evict
+         * lower-priority messages of the same device. Messages without a deviceId are not limited.
+         * @param messages The quota in number of messages
+         */
+        public Builder withDeviceQuota(Integer messages){
+            this.deviceQuota = messages;
+            return this;
+        }
+
+        /**
+         * @param segmentSize Size of each segment file in bytes (default: 1MiB). No single message can be larger.
+         */
+        public Builder withSegmentSize(Integer segmentSize){
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * @param leaseTimeout Time in milliseconds after which a locked message that has been neither released
+         *                     nor deleted is released. By default locks never expire.
+         */
+        public Builder withLeaseTimeout(Long leaseTimeout){
+            this.leaseTimeout = leaseTimeout;
+            return this;
+        }
+
+        /**
+         * @param codec Codec the messages are stored with (default: JSON). A binary codec such as CBOR makes records
+         *              smaller and faster to write, whatever the codec of the client. Records that were stored as
+         *              JSON, eg. before switching codec, are still recovered.
+         */
+        public Builder withCodec(Codec codec){
+            this.codec = codec;
+            return this;
+        }
+
+        public FilePersister build() throws IOException {
+            Integer size = this.size;
+            if (size == null) size = this.byteBudget == null ? DEFAULT_SIZE : Integer.MAX_VALUE;
+            FilePersister persister = new FilePersister(this.directory, new Capacity(size, this.byteBudget, this.quotas, this.deviceQuota), this.segmentSize, this.codec);
+            if (this.leaseTimeout != null){
+                persister.leases = new LeaseSweeper(this.leaseTimeout, persister.index::get, persister::notifyAvailable);
+            }
+            return persister;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("FilePersister");
+    public static final Integer DEFAULT_SIZE = 10000;
+    public static final Integer DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_LIVE = 1;
+    private static final byte RECORD_DELETED = 2;
+    private static final int HEADER_SIZE = 1 + 4 + 8 + 8 + 4; //status, length, token, priority, crc
+    private static final int CHECKED_HEADER_SIZE = 4 + 8 + 8; //length, token, priority
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final Capacity capacity;
+    private final Integer segmentSize;
+    private final Codec codec;
+    private final AtomicLong tokenCounter = new AtomicLong();
+    public AtomicLong counter = new AtomicLong(0L); //total number of objects ever stored
+    private final ConcurrentSkipListSet<Record> list;
+    private final ConcurrentHashMap<Long, Record> index = new ConcurrentHashMap<>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); //guarded by this
+    private Segment active; //guarded by this
+    private volatile Runnable availabilityListener;
+    private volatile Consumer<Long> evictionListener;
+    private LeaseSweeper leases;
+
+    /**
+     * A segment file and its mapping. Only the active segment is appended to.
+     */
+    private static class Segment {
+        final Long id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int position = 0;
+        int live = 0;
+
+        Segment(Long id, File file, Integer segmentSize) throws IOException {
+            this.id = id;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < segmentSize) raf.setLength(segmentSize);
+            this.channel = raf.getChannel();
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        int remaining() {
+            return this.buffer.capacity() - this.position;
+        }
+
+        void close() {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+                //the mapping stays valid until it is garbage collected
+            }
+        }
+    }
+
+    /**
+     * An index entry pointing at a record in a segment. The message body is only loaded while the entry is locked.
+     */
+    private static class Record extends TokenizedObject {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Record(Long token, Long priority, Boolean locked, Segment segment, int offset, int length) {
+            super(token, null, priority, locked);
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Construct a persister in the given directory with the default capacity and segment size, recovering any
+     * messages left there by a previous run.
+     * @param directory Directory holding the segment files (created if it does not exist).
+     * @throws IOException Thrown if the directory or its segments cannot be read or written.
+     */
+    public FilePersister(String directory) throws IOException {
+        this(directory, DEFAULT_SIZE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Construct a persister in the given directory with maximum capacity, recovering any messages left there by
+     * a previous run.
+     * @param directory Directory holding the segment files (created if it does not exist).
+     * @param size Maximum capacity (in number of messages).
+     * @throws IOException Thrown if the directory or its segments cannot be read or written.
+     */
+    public FilePersister(String directory, Integer size) throws IOException {
+        this(directory, size, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Construct a persister in the given directory with maximum capacity and segment size, recovering any
+     * messages left there by a previous run.
+     * @param directory Directory holding the segment files (created if it does not exist).
+     * @param size Maximum capacity (in number of messages).
+     * @param segmentSize Size of each segment file in bytes. No single message can be larger than this.
+     * @throws IOException Thrown if the directory or its segments cannot be read or written.
+     * @throws IllegalArgumentException Thrown if size is zero or the segment size is too small to hold a record.
+     */
+    public FilePersister(String directory, Integer size, Integer segmentSize) throws IOException, IllegalArgumentException {
+        this(directory, new Capacity(size), segmentSize, Codec.JSON);
+    }
+
+    private FilePersister(String directory, Capacity capacity, Integer segmentSize, Codec codec) throws IOException, IllegalArgumentException {
+        if (segmentSize <= HEADER_SIZE) throw new IllegalArgumentException("Segment size should be greater than " + HEADER_SIZE);
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.codec = codec;
+        this.list = new ConcurrentSkipListSet<>(TokenizedObject.PRIORITY_ORDER);
+        this.recover();
+    }
+
+    /**
+     * Scans the segment files in the directory in order and indexes every live record with a valid checksum.
+     * Scanning a segment stops at the first torn or corrupt record. Appends always go to a new segment.
+     */
+    private synchronized void recover() throws IOException {
+        File[] files = this.directory.listFiles((File dir, String name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        Long nextId = 0L;
+        Long nextToken = 0L;
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparing(FilePersister::segmentId));
+            for (File file : files) {
+                Segment segment = new Segment(segmentId(file), file, this.segmentSize);
+                nextToken = Math.max(nextToken, this.scan(segment));
+                nextId = segment.id + 1;
+                if (segment.live == 0) {
+                    this.reclaim(segment);
+                } else {
+                    this.segments.put(segment.id, segment);
+                }
+            }
+        }
+        this.tokenCounter.set(nextToken);
+        this.active = this.newSegment(nextId);
+        if (!this.index.isEmpty()) {
+            logger.log(Level.INFO, "Recovered " + this.index.size() + " messages from " + this.directory);
+        }
+    }
+
+    /**
+     * Indexes the live records of a segment.
+     * @return One more than the highest token seen in the segment.
+     */
+    private long scan(Segment segment) {
+        ByteBuffer buf = segment.buffer.duplicate();
+        long nextToken = 0L;
+        int pos = 0;
+        while (pos + HEADER_SIZE <= buf.capacity()) {
+            byte status = buf.get(pos);
+            if (status == RECORD_END) break;
+            int length = buf.getInt(pos + 1);
+            if (length < 0 || pos + HEADER_SIZE + length > buf.capacity()) {
+                logger.log(Level.WARNING, "Truncated record in " + segment.file + " at offset " + pos);
+                break;
+            }
+            long token = buf.getLong(pos + 5);
+            long priority = buf.getLong(pos + 13);
+            int crc = buf.getInt(pos + 21);
+            byte[] payload = new byte[length];
+            buf.position(pos + HEADER_SIZE);
+            buf.get(payload);
+            if (crc != checksum(length, token, priority, payload)) {
+                logger.log(Level.WARNING, "Checksum mismatch in " + segment.file + " at offset " + pos);
+                break;
+            }
+            if (status == RECORD_LIVE) {
+                Record record = new Record(token, priority, false, segment, pos, length);
+                record.bytes = HEADER_SIZE + length;
+                if (this.capacity.hasQuotas()) this.partition(record, payload);
+                this.index.put(token, record);
+                this.list.add(record);
+                this.capacity.added(record);
+                segment.live++;
+            }
+            nextToken = Math.max(nextToken, token + 1);
+            pos += HEADER_SIZE + length;
+        }
+        segment.position = buf.capacity(); //never append to a recovered segment
+        return nextToken;
+    }
+
+    private Segment newSegment(Long id) throws IOException {
+        Segment segment = new Segment(id, new File(this.directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), this.segmentSize);
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Forces the active segment to disk and starts a new one.
+     */
+    private void roll() throws IOException {
+        Segment full = this.active;
+        full.buffer.force();
+        this.active = this.newSegment(full.id + 1);
+        if (full.live == 0) this.reclaim(full);
+    }
+
+    /**
+     * Removes a segment whose records have all been deleted.
+     */
+    private void reclaim(Segment segment) {
+        this.segments.remove(segment.id);
+        segment.close();
+        if (!segment.file.delete()) {
+            logger.log(Level.WARNING, "Could not delete segment " + segment.file);
+        }
+    }
+
+    public Long put(Object data, Long priority, Boolean acquireLock) throws PersisterFullException {
+        byte[] payload = encode(data);
+        String topic = Capacity.topicOf(data);
+        String device = Capacity.deviceOf(data);
+        if (HEADER_SIZE + payload.length > this.segmentSize) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes does not fit in a segment");
+        }
+        Long token;
+        Record record;
+        List<TokenizedObject> victims;
+        synchronized (this) {
+            victims = this.capacity.victims(this.list, this.index.size(), priority, HEADER_SIZE + payload.length, topic, device);
+            for (TokenizedObject victim : victims) {
+                this.remove(victim.token);
+            }
+            try {
+                if (this.active.remaining() < HEADER_SIZE + payload.length) this.roll();
+            } catch (IOException ex) {
+                throw new PersisterFullException("Could not create segment: " + ex.getMessage());
+            }
+            token = this.tokenCounter.getAndIncrement();
+            int offset = this.append(token, priority, payload);
+            record = new Record(token, priority, acquireLock, this.active, offset, payload.length);
+            record.bytes = HEADER_SIZE + payload.length;
+            record.topic = topic;
+            record.device = device;
+            this.active.live++;
+            this.index.put(token, record);
+            this.list.add(record);
+            this.capacity.added(record);
+        }
+        for (TokenizedObject victim : victims) {
+            this.evicted(victim.token);
+        }
+        this.counter.incrementAndGet();
+        if (acquireLock) {
+            this.leased(record);
+        } else {
+            this.notifyAvailable();
+        }
+        return token;
+    }
+
+    /**
+     * Writes a record at the end of the active segment. The status byte goes last so that a partially
+     * written record reads as the end of the segment.
+     * @return The offset of the record.
+     */
+    private int append(Long token, Long priority, byte[] payload) {
+        MappedByteBuffer buf = this.active.buffer;
+        int offset = this.active.position;
+        buf.putInt(offset + 1, payload.length);
+        buf.putLong(offset + 5, token);
+        buf.putLong(offset + 13, priority);
+        buf.putInt(offset + 21, checksum(payload.length, token, priority, payload));
+        buf.position(offset + HEADER_SIZE);
+        buf.put(payload);
+        buf.put(offset, RECORD_LIVE);
+        this.active.position = offset + HEADER_SIZE + payload.length;
+        return offset;
+    }
+
+    /**
+     * Returns the number of items currently persisted.
+     */
+    public Integer size() {
+        return this.index.size();
+    }
+
+    @Override
+    public double utilisation() {
+        return this.capacity.utilisation(this.index.size());
+    }
+
+    /**
+     * Returns the maximum number of messages.
+     */
+    Integer capacity() {
+        return this.capacity.size();
+    }
+
+    /**
+     * Returns the total size of the live records on disk, in bytes.
+     */
+    public Long bytes() {
+        return this.capacity.bytes();
+    }
+
+    public TokenizedObject peekLock() throws NoSuchElementException {
+        Iterator<Record> it = this.list.descendingIterator();
+        while (it.hasNext()) {
+            Record record = it.next();
+            if (record.tryAcquire()) {
+                if (this.load(record)) {
+                    this.leased(record);
+                    return record;
+                }
+                record.release();
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    @Override
+    public List<TokenizedObject> peekLock(int max) {
+        List<TokenizedObject> batch = new ArrayList<>(Math.min(max, this.size()));
+        Iterator<Record> it = this.list.descendingIterator();
+        while (batch.size() < max && it.hasNext()) {
+            Record record = it.next();
+            if (record.tryAcquire()) {
+                if (this.load(record)) {
+                    this.leased(record);
+                    batch.add(record);
+                } else {
+                    record.release();
+                }
+            }
+        }
+        return batch;
+    }
+
+    @Override
+    public TokenizedObject getByToken(Long token) throws NoSuchElementException {
+        Record record = this.index.get(token);
+        if (record == null || !this.load(record)) throw new NoSuchElementException();
+        return record;
+    }
+
+    public synchronized void delete(Long token) {
+        this.remove(token);
+    }
+
+    @Override
+    public synchronized void delete(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            this.remove(token);
+        }
+    }
+
+    private void remove(Long token) {
+        Record record = this.index.remove(token);
+        if (record == null) return;
+        this.list.remove(record);
+        this.capacity.removed(record);
+        record.data = null;
+        record.release(); //so that its lease is not counted as expired
+        record.segment.buffer.put(record.offset, RECORD_DELETED);
+        if (--record.segment.live == 0 && record.segment != this.active) {
+            this.reclaim(record.segment);
+        }
+    }
+
+    @Override
+    public void release(Long token) {
+        Record record = this.index.get(token);
+        if (record == null) return;
+        record.release(); //the data is kept: a late release may come while another thread holds the record again
+        this.notifyAvailable();
+    }
+
+    @Override
+    public void release(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            Record record = this.index.get(token);
+            if (record == null) continue;
+            record.release();
+        }
+        this.notifyAvailable();
+    }
+
+    @Override
+    public void onAvailable(Runnable listener) {
+        this.availabilityListener = listener;
+    }
+
+    private void notifyAvailable() {
+        Runnable listener = this.availabilityListener;
+        if (listener != null) listener.run();
+    }
+
+    /**
+     * Sets the callback told the token of each message evicted to make room for another, or dropped because it
+     * could not be decoded.
+     */
+    @Override
+    public void onEvicted(Consumer<Long> listener) {
+        this.evictionListener = listener;
+    }
+
+    private void evicted(Long token) {
+        Consumer<Long> listener = this.evictionListener;
+        if (listener != null) listener.accept(token);
+    }
+
+    /**
+     * Returns the tokens of the messages currently persisted.
+     */
+    Collection<Long> tokens() {
+        return this.index.keySet();
+    }
+
+    private void leased(Record record) {
+        if (this.leases != null) this.leases.leased(record);
+    }
+
+    /**
+     * Forces outstanding writes to the storage device.
+     */
+    @Override
+    public synchronized void flush() {
+        for (Segment segment : this.segments.values()) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the segment files. Messages that have not been deleted will be recovered by the
+     * next persister opened on the same directory.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.leases != null) this.leases.cancel();
+        this.flush();
+        for (Segment segment : this.segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Reads the message body of a record from its segment.
+     * @return Whether the record is still live and could be decoded.
+     */
+    private boolean load(Record record) {
+        if (record.data != null) return true;
+        if (!this.index.containsKey(record.token)) return false;
+        byte[] payload = new byte[record.length];
+        ByteBuffer buf = record.segment.buffer.duplicate();
+        buf.position(record.offset + HEADER_SIZE);
+        buf.get(payload);
+        try {
+            record.data = this.decode(payload);
+            return true;
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.log(Level.WARNING, "Dropping undecodable message with token " + record.token + ": " + ex.getMessage());
+            this.delete(record.token);
+            this.evicted(record.token);
+            return false;
+        }
+    }
+
+    private byte[] encode(Object data) throws IllegalArgumentException {
+        if (!(data instanceof Message)) {
+            throw new IllegalArgumentException("FilePersister can only store messages");
+        }
+        byte[] payload = ((Message) data).toBytes(this.codec);
+        if (payload == null) throw new IllegalArgumentException("Message could not be serialized");
+        return payload;
+    }
+
+    /**
+     * Deserializes a record, as JSON if it looks like it (a JSON object or array), otherwise with the codec of the
+     * persister.
+     */
+    private Object decode(byte[] payload) throws IOException {
+        boolean json = payload.length > 0 && (payload[0] == '{' || payload[0] == '[');
+        return Message.deserialize(payload, json ? Codec.JSON : this.codec);
+    }
+
+    /**
+     * Sets the topic and device of a recovered record, which count towards quotas.
+     */
+    private void partition(Record record, byte[] payload) {
+        try {
+            Object data = this.decode(payload);
+            record.topic = Capacity.topicOf(data);
+            record.device = Capacity.deviceOf(data);
+        } catch (IOException | IllegalArgumentException ex) {
+            //counted against no quota
+        }
+    }
+
+    /**
+     * Returns the CRC32 of a record, covering its header as well as its payload so that a corrupt length, token or
+     * priority is detected. The status byte is left out as it is flipped in place when the record is deleted.
+     */
+    private static int checksum(int length, long token, long priority, byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(CHECKED_HEADER_SIZE);
+        header.putInt(length).putLong(token).putLong(priority);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, CHECKED_HEADER_SIZE);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static Long segmentId(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.persistence;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Returns locked objects to their persister when they have not been released or deleted within a timeout,
+ * eg. because the acknowledgement for the message never arrived.
+ *
+ * Every lock taken by the persister is recorded in a queue. Since all locks have the same timeout the queue is
+ * ordered by expiry, so a periodic sweep only looks at the leases that have expired. Leases only hold the token
+ * of their object, which is looked up when the lease expires, so that objects deleted meanwhile are not kept in
+ * memory until then. All sweepers share a single daemon thread.
+ */
+class LeaseSweeper {
+    private static final Logger logger = Logger.getLogger("LeaseSweeper");
+    private static final Long minimumPeriod = 10L;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "flex-lease-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Long timeout;
+    private final Function<Long, TokenizedObject> lookup;
+    private final Runnable onExpired;
+    private final ConcurrentLinkedQueue<Lease> leases = new ConcurrentLinkedQueue<>();
+    private final ScheduledFuture<?> task;
+
+    private static class Lease {
+        final long token;
+        final long id;
+        final long expiresAt;
+
+        Lease(long token, long id, long expiresAt) {
+            this.token = token;
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param timeout Time in milliseconds after which a lock expires.
+     * @param lookup Returns the object persisted with a token, or null if it has been deleted.
+     * @param onExpired Invoked after a sweep that released at least one object.
+     */
+    LeaseSweeper(Long timeout, Function<Long, TokenizedObject> lookup, Runnable onExpired) {
+        if (timeout <= 0) throw new IllegalArgumentException("Lease timeout should be positive");
+        this.timeout = timeout;
+        this.lookup = lookup;
+        this.onExpired = onExpired;
+        Long period = Math.max(timeout / 4, minimumPeriod);
+        this.task = scheduler.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the lock currently held on the object.
+     */
+    void leased(TokenizedObject object) {
+        long id = object.leaseId();
+        if (id != 0L) this.leases.offer(new Lease(object.token, id, System.currentTimeMillis() + this.timeout));
+    }
+
+    /**
+     * Releases the objects whose leases have expired and that are still held under those leases.
+     * @return The number of objects released.
+     */
+    int sweep() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        Lease lease;
+        while ((lease = this.leases.peek()) != null && lease.expiresAt <= now) {
+            this.leases.poll();
+            TokenizedObject object = this.lookup.apply(lease.token);
+            if (object != null && object.expire(lease.id)) expired++;
+        }
+        if (expired > 0) {
+            logger.log(Level.WARNING, "Released " + expired + " messages that were not acknowledged within " + this.timeout + "ms");
+            this.onExpired.run();
+        }
+        return expired;
+    }
+
+    /**
+     * Stops sweeping.
+     */
+    void cancel() {
+        this.task.cancel(false);
+    }
+}
@@ -15,43 +15,288 @@
 package com.openenergi.flex.persistence;
 
 
-import java.util.Comparator;
+import com.openenergi.flex.message.Reading;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
- * Persists messages in memory in an ordered hashmap.
+ * Persists messages in memory in an ordered set, with a hashmap from token to entry so that
+ * lookups, acknowledgements and releases by token are constant time.
+ *
+ * Messages of equal priority are kept in insertion order: the newest is locked first and the
+ * oldest is evicted first.
+ *
+ * Capacity is a number of messages by default. It can also be given as a budget of serialized bytes,
+ * optionally with per-topic quotas, and split between devices with a per-device quota (see {@link Builder}).
+ *
+ * Optionally, locks can be given a lease timeout (see {@link Builder#withLeaseTimeout(Long)}) so that
+ * messages whose acknowledgement never arrives are eventually made available again.
+ *
+ * Optionally, readings can be rolled up as the persister fills (see {@link Builder#withRollup(Double, Long)}):
+ * past a high-water mark, older readings of the same entity and type are combined into min/mean/max aggregates
+ * over time buckets, so that a long outage costs resolution rather than samples. Roll-ups run on a background
+ * thread shared by all memory persisters, so put() does not wait for them.
  */
 public class MemoryPersister implements Persister {
+    public static class Builder {
+        private Integer size;
+        private Long byteBudget;
+        private Map<String, Long> quotas = new HashMap<>();
+        private Integer deviceQuota;
+        private Long leaseTimeout;
+        private Double highWaterMark;
+        private Long bucket;
+
+        /**
+         * @param size Maximum capacity (in number of messages). Defaults to 10000, or to no limit if a byte
+         *             budget is given.
+         */
+        public Builder withCapacity(Integer size){
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * @param byteBudget Maximum capacity, as the total serialized size of the messages in bytes.
+         */
+        public Builder withByteBudget(Long byteBudget){
+            this.byteBudget = byteBudget;
+            return this;
+        }
+
+        /**
+         * Limits the total serialized size of the messages of a topic (eg. "readings"). Once a topic is at its
+         * quota a new message of that topic can only evict lower-priority messages of the same topic.
+         * @param topic The message topic
+         * @param bytes The quota in bytes
+         */
+        public Builder withTopicQuota(String topic, Long bytes){
+            this.quotas.put(topic, bytes);
+            return this;
+        }
+
+        /**
+         * Limits the number of messages of each device (by deviceId), eg. when one persister is shared by the
+         * devices of a gateway. Once a device is at its quota a new message for that device can only evict
+         * lower-priority messages of the same device. Messages without a deviceId are not limited.
+         * @param messages The quota in number of messages
+         */
+        public Builder withDeviceQuota(Integer messages){
+            this.deviceQuota = messages;
+            return this;
+        }
+
+        /**
+         * @param leaseTimeout Time in milliseconds after which a locked message that has been neither released
+         *                     nor deleted is released. By default locks never expire.
+         */
+        public Builder withLeaseTimeout(Long leaseTimeout){
+            this.leaseTimeout = leaseTimeout;
+            return this;
+        }
+
+        /**
+         * Rolls up readings once the persister is fuller than the high-water mark (by number of messages or by
+         * bytes). Unlocked readings of the same entity and type that fall in the same time bucket, and are older
+         * than one bucket, are replaced by one aggregate reading (see {@link Reading#aggregate(java.util.List)}).
+         * If that does not bring the persister below the mark, the bucket is doubled and the readings rolled up
+         * again, so resolution degrades gradually as the outage goes on.
+         * @param highWaterMark Fraction of the capacity, between 0 and 1, above which readings are rolled up
+         * @param bucket Width of the smallest time bucket in milliseconds
+         */
+        public Builder withRollup(Double highWaterMark, Long bucket){
+            if (highWaterMark <= 0 || highWaterMark > 1) throw new IllegalArgumentException("High-water mark should be between 0 and 1");
+            if (bucket <= 0) throw new IllegalArgumentException("Bucket should be positive");
+            this.highWaterMark = highWaterMark;
+            this.bucket = bucket;
+            return this;
+        }
+
+        public MemoryPersister build(){
+            Integer size = this.size;
+            if (size == null) size = this.byteBudget == null ? 10000 : Integer.MAX_VALUE;
+            MemoryPersister persister = new MemoryPersister(new Capacity(size, this.byteBudget, this.quotas, this.deviceQuota));
+            if (this.leaseTimeout != null){
+                persister.leases = new LeaseSweeper(this.leaseTimeout, persister.index::get, persister::notifyAvailable);
+            }
+            if (this.highWaterMark != null){
+                persister.highWaterMark = this.highWaterMark;
+                persister.bucket = this.bucket;
+            }
+            return persister;
+        }
+    }
+
     private static AtomicLong tokenCounter = new AtomicLong();
-    private Integer size;
+    private static final ExecutorService roller = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "flex-rollup");
+        t.setDaemon(true);
+        return t;
+    });
+    private Capacity capacity;
     public AtomicLong counter = new AtomicLong(0L); //total number of objects ever stored
     private ConcurrentSkipListSet<TokenizedObject> list;
+    private ConcurrentHashMap<Long, TokenizedObject> index = new ConcurrentHashMap<>();
+    private volatile Runnable availabilityListener;
+    private volatile Consumer<Long> evictionListener;
+    private LeaseSweeper leases;
+    private Double highWaterMark;
+    private Long bucket;
+    private volatile long nextRollup = 0L; //value of counter before which no rollup is attempted
+    private final AtomicBoolean rollupScheduled = new AtomicBoolean(false);
+
+    private static final int maxRollupLevels = 16; //largest bucket is 2^15 times the smallest
 
     public Long put(Object data, Long priority, Boolean acquireLock) throws PersisterFullException {
-        //warning: size() is not constant time with this data structure
-        if (this.list.size() >= this.size){
-            if (priority > this.list.first().priority) {
-                this.truncate();
-            } else {
-                throw new PersisterFullException("Buffer full"); //TODO(mbironneau): Log this instead of silently dropping it
+        String topic = Capacity.topicOf(data);
+        long bytes = this.capacity.measure(data, topic);
+        Long token = MemoryPersister.tokenCounter.getAndIncrement();
+        TokenizedObject to = new TokenizedObject(token, data, priority, acquireLock);
+        to.bytes = bytes;
+        to.topic = topic;
+        to.device = Capacity.deviceOf(data);
+
+        List<TokenizedObject> victims;
+        synchronized (this.capacity) {
+            victims = this.capacity.victims(this.list, this.index.size(), priority, bytes, topic, to.device);
+            for (TokenizedObject victim : victims) {
+                this.delete(victim.token);
             }
+            this.index.put(token, to);
+            this.list.add(to);
+            this.capacity.added(to);
+        }
+        for (TokenizedObject victim : victims) {
+            this.evicted(victim.token);
         }
         this.counter.incrementAndGet();
-        Long token = MemoryPersister.tokenCounter.getAndIncrement();
-        this.list.add(new TokenizedObject(token, data, priority, acquireLock));
+        if (this.highWaterMark != null) this.scheduleRollup();
+        if (acquireLock) {
+            this.leased(to);
+        } else {
+            this.notifyAvailable();
+        }
         return token;
     }
 
     /**
-     * Truncates the list so that it has one free slot.
+     * Rolls up readings on the background thread if the persister is above its high-water mark. At most one
+     * roll-up of the persister is pending at a time.
+     */
+    private void scheduleRollup() {
+        if (this.capacity.utilisation(this.index.size()) < this.highWaterMark) return;
+        if (this.counter.get() < this.nextRollup) return;
+        if (!this.rollupScheduled.compareAndSet(false, true)) return;
+        MemoryPersister.roller.execute(() -> {
+            try {
+                this.rollUp();
+            } finally {
+                this.rollupScheduled.set(false);
+            }
+        });
+    }
+
+    /**
+     * Rolls up readings in ever wider buckets until the persister is below its high-water mark. A pass that
+     * cannot get below the mark holds off further passes until one percent of the capacity has been put since,
+     * so that a persister full of readings that cannot be rolled up is not scanned on every put.
+     */
+    private void rollUp() {
+        long count = this.counter.get();
+        long bucket = this.bucket;
+        for (int level = 0; level < MemoryPersister.maxRollupLevels; level++, bucket *= 2) {
+            if (this.capacity.utilisation(this.index.size()) < this.highWaterMark) return;
+            this.rollUp(bucket, System.currentTimeMillis() - bucket);
+        }
+        if (this.capacity.utilisation(this.index.size()) >= this.highWaterMark) {
+            this.nextRollup = count + this.index.size() / 100 + 1;
+        }
+    }
+
+    /**
+     * Replaces unlocked readings older than the given time by one aggregate reading per entity, type and bucket.
+     * The aggregate keeps the highest priority of the readings it replaces. The readings are grouped without
+     * holding the capacity monitor, which is then held for one group at a time so that puts are not held up.
      */
-    private void truncate() {
-        while (this.list.size() >= this.size) {
-            this.list.remove(this.list.first());
+    private void rollUp(long bucket, long before) {
+        Map<String, List<TokenizedObject>> groups = new HashMap<>();
+        for (TokenizedObject to : this.list) {
+            if (!(to.data instanceof Reading)) continue;
+            Reading reading = (Reading) to.data;
+            if (reading.getTimestamp() == null || reading.getValue() == null || reading.getTimestamp() >= before) continue;
+            String key = reading.getEntity() + '\u0000' + reading.getType() + '\u0000' + Math.floorDiv(reading.getTimestamp(), bucket);
+            groups.computeIfAbsent(key, (String k) -> new ArrayList<>()).add(to);
+        }
+
+        boolean rolledUp = false;
+        for (List<TokenizedObject> group : groups.values()) {
+            if (group.size() < 2) continue;
+            List<Long> replaced = new ArrayList<>(group.size());
+            synchronized (this.capacity) {
+                if (!this.rollUp(group, replaced)) continue;
+            }
+            rolledUp = true;
+            for (Long token : replaced) {
+                this.evicted(token);
+            }
+        }
+        if (rolledUp) this.notifyAvailable();
+    }
+
+    /**
+     * Replaces the readings of a group that are still stored and unlocked by their aggregate. Must hold the
+     * capacity monitor.
+     * @param replaced Receives the tokens of the readings that were replaced
+     * @return Whether the readings were rolled up, ie. at least two of them could be locked.
+     */
+    private boolean rollUp(List<TokenizedObject> group, List<Long> replaced) {
+        List<TokenizedObject> acquired = new ArrayList<>(group.size());
+        for (TokenizedObject to : group) {
+            //locked so that the drainer cannot send it meanwhile, skipped if deleted since the scan
+            if (to.tryAcquire()) {
+                if (this.index.get(to.token) == to) {
+                    acquired.add(to);
+                } else {
+                    to.release();
+                }
+            }
+        }
+        if (acquired.size() < 2) {
+            for (TokenizedObject to : acquired) to.release();
+            return false;
+        }
+
+        List<Reading> readings = new ArrayList<>(acquired.size());
+        long priority = Long.MIN_VALUE;
+        for (TokenizedObject to : acquired) {
+            readings.add((Reading) to.data);
+            priority = Math.max(priority, to.priority);
+            this.delete(to.token);
+            replaced.add(to.token);
         }
+        Reading aggregate = Reading.aggregate(readings);
+        String topic = Capacity.topicOf(aggregate);
+        TokenizedObject to = new TokenizedObject(MemoryPersister.tokenCounter.getAndIncrement(), aggregate, priority, false);
+        to.bytes = this.capacity.measure(aggregate, topic);
+        to.topic = topic;
+        to.device = Capacity.deviceOf(aggregate);
+        this.index.put(to.token, to);
+        this.list.add(to);
+        this.capacity.added(to);
+        return true;
     }
 
     /**
@@ -59,7 +304,20 @@ public class MemoryPersister implements Persister {
      * @return
      */
     public Integer size() {
-        return this.list.size();
+        return this.index.size();
+    }
+
+    @Override
+    public double utilisation() {
+        return this.capacity.utilisation(this.index.size());
+    }
+
+    /**
+     * Returns the total serialized size of the items currently persisted, in bytes. Only items that count
+     * towards a byte budget or topic quota are measured.
+     */
+    public Long bytes() {
+        return this.capacity.bytes();
     }
 
 
@@ -68,6 +326,7 @@ public class MemoryPersister implements Persister {
         while (it.hasNext()){
             TokenizedObject to = it.next();
             if (to.tryAcquire()){
+                this.leased(to);
                 return to;
             }
         }
@@ -77,51 +336,96 @@ public class MemoryPersister implements Persister {
     }
 
     @Override
-    public TokenizedObject getByToken(Long token) throws NoSuchElementException {
+    public List<TokenizedObject> peekLock(int max) {
+        List<TokenizedObject> batch = new ArrayList<>(Math.min(max, this.size()));
         Iterator<TokenizedObject> it = this.list.descendingIterator();
-        while (it.hasNext()){
+        while (batch.size() < max && it.hasNext()){
             TokenizedObject to = it.next();
-            if (to.token == token){
-                return to;
+            if (to.tryAcquire()){
+                this.leased(to);
+                batch.add(to);
             }
         }
-        //if we got this far then there are no eligible objects. for consistency
-        //we should throw.
-        throw new NoSuchElementException();
+        return batch;
     }
 
+    /**
+     * Locks and returns the unlocked entry of lowest priority, or null if there is none. The lock is not leased.
+     */
+    TokenizedObject lockLowest() {
+        for (TokenizedObject to : this.list) {
+            if (to.tryAcquire()) return to;
+        }
+        return null;
+    }
 
-    public void delete(Long token) {
-        //This method looks like it is O(N). However, peek() returns elements from the
-        //head of the list, so by iterating in descending order we are actually quite
-        //likely to hit the desired element without iterating through more than a few
-        //items.
+    @Override
+    public TokenizedObject getByToken(Long token) throws NoSuchElementException {
+        TokenizedObject to = this.index.get(token);
+        if (to == null) throw new NoSuchElementException();
+        return to;
+    }
 
-        Iterator<TokenizedObject> it = this.list.descendingIterator();
 
-        it.forEachRemaining((TokenizedObject to) -> {
-            if (to.token == token) {
-                this.list.remove(to);
-                return;
-            }
-        });
+    public void delete(Long token) {
+        TokenizedObject to = this.index.remove(token);
+        if (to == null) return;
+        this.list.remove(to);
+        this.capacity.removed(to);
+        to.release(); //so that its lease is not counted as expired
     }
 
     @Override
     public void release(Long token) {
-        //This method looks like it is O(N). However, peek() returns elements from the
-        //head of the list, so by iterating in descending order we are actually quite
-        //likely to hit the desired element without iterating through more than a few
-        //items.
+        TokenizedObject to = this.index.get(token);
+        if (to == null) return;
+        to.release();
+        this.notifyAvailable();
+    }
 
-        Iterator<TokenizedObject> it = this.list.descendingIterator();
+    @Override
+    public void release(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            TokenizedObject to = this.index.get(token);
+            if (to != null) to.release();
+        }
+        this.notifyAvailable();
+    }
 
-        it.forEachRemaining((TokenizedObject to) -> {
-            if (to.token == token) {
-                to.release();
-                return;
-            }
-        });
+    @Override
+    public void onAvailable(Runnable listener) {
+        this.availabilityListener = listener;
+    }
+
+    private void notifyAvailable() {
+        Runnable listener = this.availabilityListener;
+        if (listener != null) listener.run();
+    }
+
+    /**
+     * Sets the callback told the token of each message evicted to make room for another, or replaced by an
+     * aggregate when readings are rolled up.
+     */
+    @Override
+    public void onEvicted(Consumer<Long> listener) {
+        this.evictionListener = listener;
+    }
+
+    private void evicted(Long token) {
+        Consumer<Long> listener = this.evictionListener;
+        if (listener != null) listener.accept(token);
+    }
+
+    private void leased(TokenizedObject to) {
+        if (this.leases != null) this.leases.leased(to);
+    }
+
+    /**
+     * Stops sweeping expired leases. The messages held in memory are not kept for a later run.
+     */
+    @Override
+    public void close() {
+        if (this.leases != null) this.leases.cancel();
     }
 
     /**
@@ -130,13 +434,12 @@ public class MemoryPersister implements Persister {
      * @throws IllegalArgumentException Thrown if size is zero.
      */
     public MemoryPersister(Integer size) throws IllegalArgumentException{
-        if (size == 0) throw new IllegalArgumentException("Size should be at least 1");
-        this.list = new ConcurrentSkipListSet<>(new Comparator<TokenizedObject>() {
-            public int compare(TokenizedObject o1, TokenizedObject o2) {
-                return Long.compare(o1.priority, o2.priority);
-            }
-        });
-        this.size = size;
+        this(new Capacity(size));
+    }
+
+    private MemoryPersister(Capacity capacity){
+        this.list = new ConcurrentSkipListSet<>(TokenizedObject.PRIORITY_ORDER);
+        this.capacity = capacity;
     }
 
 }
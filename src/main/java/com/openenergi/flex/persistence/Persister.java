@@ -14,7 +14,11 @@
 
 package com.openenergi.flex.persistence;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 
 /**
  * An interface to a persistent data store for message tuples.
@@ -33,6 +37,24 @@ public interface Persister {
      */
     TokenizedObject peekLock() throws NoSuchElementException;
 
+    /**
+     * Returns up to max objects in the store in decreasing priority order and locks them. Implementations
+     * should override this to lock the whole batch in a single pass.
+     * @param max The maximum number of objects to lock
+     * @return The locked objects (empty if there are no eligible objects)
+     */
+    default List<TokenizedObject> peekLock(int max) {
+        List<TokenizedObject> batch = new ArrayList<>();
+        try {
+            while (batch.size() < max) {
+                batch.add(this.peekLock());
+            }
+        } catch (NoSuchElementException ignored) {
+            //fewer than max eligible objects
+        }
+        return batch;
+    }
+
     TokenizedObject getByToken(Long token) throws NoSuchElementException;
 
     /**
@@ -41,9 +63,65 @@ public interface Persister {
      */
     void delete(Long token);
 
+    /**
+     * Deletes the objects with the given tokens.
+     * @param tokens The tokens of the objects
+     */
+    default void delete(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            this.delete(token);
+        }
+    }
+
     /**
      * Releases the object held at token for processing by other threads.
      * @param token The token of the object
      */
     void release(Long token);
+
+    /**
+     * Releases the objects held at the given tokens for processing by other threads.
+     * @param tokens The tokens of the objects
+     */
+    default void release(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            this.release(token);
+        }
+    }
+
+    /**
+     * Sets the callback to invoke whenever an object becomes available to peekLock(), i.e. when an unlocked
+     * object is stored or a locked one is released. Persisters that cannot notify may ignore the callback, in
+     * which case consumers only find out about new objects when they next call peekLock().
+     * @param listener The callback
+     */
+    default void onAvailable(Runnable listener) {}
+
+    /**
+     * Sets the callback to invoke with the token of every object that the persister drops other than by delete(),
+     * e.g. to make room for an object of higher priority. It is invoked once the object is gone, on the thread that
+     * caused the eviction, so it should not block. Persisters that never drop objects, or cannot notify, may ignore
+     * the callback.
+     * @param listener The callback
+     */
+    default void onEvicted(Consumer<Long> listener) {}
+
+    /**
+     * Returns how full the persister is, from 0 (empty) to 1 (full, so that storing another object either evicts
+     * one of lower priority or fails). Persisters without a capacity, or that cannot tell, return 0.
+     */
+    default double utilisation() {
+        return 0.0;
+    }
+
+    /**
+     * Forces stored objects to a durable store, if the persister has one.
+     */
+    default void flush() {}
+
+    /**
+     * Releases the resources of the persister. A persister with a durable store keeps the objects that have not
+     * been deleted, so that they can be recovered by the next persister opened on the same store.
+     */
+    default void close() {}
 }
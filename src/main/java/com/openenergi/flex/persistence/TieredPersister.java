@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2016 Open Energi. All rights reserved.
+ *
+ * MIT License Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the ""Software""),
+ * to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT
+ * OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.openenergi.flex.persistence;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the highest-priority messages in memory and spills the rest to disk.
+ *
+ * The head is a {@link MemoryPersister} holding up to a fixed number of messages, so locking urgent messages
+ * does not touch the disk. When the head is full, a new message either displaces the lowest-priority message of
+ * the head to the tail - a {@link FilePersister} - or, if it does not outrank it, goes to the tail itself. As
+ * messages are acknowledged and the head drains below half full, it is refilled from the highest priorities of
+ * the tail on a background thread (shared by all tiered persisters).
+ *
+ * On close the head is spilled to the tail, so that no message is lost across a restart.
+ *
+ * Messages keep the same token as they move between tiers. The head holds the highest priorities only
+ * approximately: messages that are locked when the head is full are not spilled, and until a refill completes
+ * messages are locked from the tail directly.
+ */
+public class TieredPersister implements Persister, Closeable {
+    public static class Builder {
+        private FilePersister tail;
+        private Integer headSize = 1000;
+        private Long leaseTimeout;
+
+        /**
+         * @param tail Persister for the messages that do not fit in memory. It should not be used directly.
+         */
+        public Builder(FilePersister tail){
+            this.tail = tail;
+        }
+
+        /**
+         * @param headSize Maximum number of messages kept in memory (default: 1000).
+         */
+        public Builder withHeadSize(Integer headSize){
+            this.headSize = headSize;
+            return this;
+        }
+
+        /**
+         * @param leaseTimeout Time in milliseconds after which a locked message of the head that has been neither
+         *                     released nor deleted is released. Lease timeouts of the tail are set on the tail.
+         */
+        public Builder withLeaseTimeout(Long leaseTimeout){
+            this.leaseTimeout = leaseTimeout;
+            return this;
+        }
+
+        public TieredPersister build(){
+            MemoryPersister.Builder head = new MemoryPersister.Builder().withCapacity(this.headSize);
+            if (this.leaseTimeout != null) head.withLeaseTimeout(this.leaseTimeout);
+            return new TieredPersister(head.build(), this.headSize, this.tail);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("TieredPersister");
+    private static final ExecutorService refiller = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "flex-tier-refill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MemoryPersister head;
+    private final Integer headSize;
+    private final FilePersister tail;
+    private final AtomicLong tokenCounter = new AtomicLong();
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Entry> headEntries = new ConcurrentHashMap<>(); //by token in the head
+    private final ConcurrentHashMap<Long, Entry> tailEntries = new ConcurrentHashMap<>(); //by token in the tail
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+    private volatile Runnable availabilityListener;
+    private volatile Consumer<Long> evictionListener;
+
+    /**
+     * Where a message currently lives. Moving it between tiers and deleting it are serialized on the entry.
+     */
+    private static class Entry {
+        final Long token;
+        Persister tier;
+        Long inner;
+        volatile boolean deleted = false;
+
+        Entry(Long token) {
+            this.token = token;
+        }
+    }
+
+    private TieredPersister(MemoryPersister head, Integer headSize, FilePersister tail) {
+        this.head = head;
+        this.headSize = headSize;
+        this.tail = tail;
+        for (Long inner : tail.tokens()) { //messages recovered from disk
+            this.register(new Entry(this.tokenCounter.getAndIncrement()), tail, inner);
+        }
+        head.onEvicted((Long inner) -> this.evicted(this.headEntries, inner));
+        tail.onEvicted((Long inner) -> this.evicted(this.tailEntries, inner));
+        head.onAvailable(this::notifyAvailable);
+        tail.onAvailable(this::notifyAvailable);
+        this.scheduleRefill();
+    }
+
+    public Long put(Object data, Long priority, Boolean acquireLock) throws PersisterFullException {
+        Entry entry = new Entry(this.tokenCounter.getAndIncrement());
+        Persister tier;
+        Long inner;
+        synchronized (this) {
+            tier = this.makeRoomInHead(priority) ? this.head : this.tail;
+            //put locked so that the message cannot be locked before its entry is registered
+            inner = tier.put(data, priority, true);
+            synchronized (entry) {
+                this.register(entry, tier, inner);
+            }
+        }
+        if (!acquireLock) tier.release(inner);
+        return entry.token;
+    }
+
+    /**
+     * Returns whether a message of the given priority should go to the head, spilling the lowest-priority
+     * message of the head to the tail if necessary. Must hold the monitor.
+     */
+    private boolean makeRoomInHead(Long priority) throws PersisterFullException {
+        if (this.head.size() < this.headSize) return true;
+        TokenizedObject lowest = this.head.lockLowest();
+        if (lowest == null) return false;
+        if (lowest.priority >= priority) {
+            lowest.release();
+            return false;
+        }
+        Entry entry = this.headEntries.get(lowest.token);
+        if (entry == null) return this.head.size() < this.headSize; //deleted meanwhile
+        synchronized (entry) {
+            if (entry.deleted) return this.head.size() < this.headSize;
+            Long inner;
+            try {
+                inner = this.tail.put(lowest.data, lowest.priority, false);
+            } catch (PersisterFullException e) {
+                lowest.release();
+                throw e;
+            }
+            this.move(entry, this.tail, inner);
+        }
+        return true;
+    }
+
+    /**
+     * Moves messages from the tail to the head until the head is full or the tail has no unlocked message.
+     */
+    private void refill() {
+        while (true) {
+            synchronized (this) {
+                if (this.head.size() >= this.headSize) return;
+                TokenizedObject to;
+                try {
+                    to = this.tail.peekLock();
+                } catch (NoSuchElementException e) {
+                    return;
+                }
+                Entry entry = this.tailEntries.get(to.token);
+                if (entry == null) continue; //evicted meanwhile
+                synchronized (entry) {
+                    if (entry.deleted) continue;
+                    Long inner;
+                    try {
+                        inner = this.head.put(to.data, to.priority, false);
+                    } catch (PersisterFullException e) {
+                        this.tail.release(to.token);
+                        return;
+                    }
+                    this.move(entry, this.head, inner);
+                }
+            }
+        }
+    }
+
+    private void scheduleRefill() {
+        if (this.head.size() >= this.headSize / 2 || this.tailEntries.isEmpty()) return;
+        if (!this.refillScheduled.compareAndSet(false, true)) return;
+        refiller.execute(() -> {
+            this.refillScheduled.set(false);
+            this.refill();
+        });
+    }
+
+    /**
+     * Records that the entry now lives in the given tier. Must hold the monitor of the entry.
+     */
+    private void register(Entry entry, Persister tier, Long inner) {
+        entry.tier = tier;
+        entry.inner = inner;
+        this.entries.put(entry.token, entry);
+        (tier == this.head ? this.headEntries : this.tailEntries).put(inner, entry);
+    }
+
+    /**
+     * Deletes the message of the entry from its current tier and records that it now lives in the given tier.
+     * Must hold the monitor of the entry.
+     */
+    private void move(Entry entry, Persister tier, Long inner) {
+        Persister from = entry.tier;
+        Long old = entry.inner;
+        (from == this.head ? this.headEntries : this.tailEntries).remove(old);
+        this.register(entry, tier, inner);
+        from.delete(old);
+    }
+
+    /**
+     * Forgets a message that a tier dropped to make room for another.
+     */
+    private void evicted(ConcurrentHashMap<Long, Entry> tierEntries, Long inner) {
+        Entry entry = tierEntries.remove(inner);
+        if (entry == null) return;
+        entry.deleted = true;
+        this.entries.remove(entry.token);
+        Consumer<Long> listener = this.evictionListener;
+        if (listener != null) listener.accept(entry.token);
+    }
+
+    /**
+     * Returns the number of items currently persisted. A message being moved between tiers is counted once.
+     */
+    public Integer size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the combined utilisation of both tiers, each weighted by the number of messages it can hold, so
+     * that a full head counts even while the tail is empty.
+     */
+    @Override
+    public double utilisation() {
+        double headCapacity = this.headSize;
+        double tailCapacity = this.tail.capacity();
+        return (this.head.utilisation() * headCapacity + this.tail.utilisation() * tailCapacity) / (headCapacity + tailCapacity);
+    }
+
+    /**
+     * Returns the number of items currently held in memory.
+     */
+    public Integer sizeInMemory() {
+        return this.head.size();
+    }
+
+    public TokenizedObject peekLock() throws NoSuchElementException {
+        List<TokenizedObject> batch = this.peekLock(1);
+        if (batch.isEmpty()) throw new NoSuchElementException();
+        return batch.get(0);
+    }
+
+    @Override
+    public List<TokenizedObject> peekLock(int max) {
+        List<TokenizedObject> batch = new ArrayList<>();
+        this.view(this.head.peekLock(max), this.headEntries, batch);
+        if (batch.size() < max) {
+            this.view(this.tail.peekLock(max - batch.size()), this.tailEntries, batch);
+        }
+        this.scheduleRefill();
+        return batch;
+    }
+
+    /**
+     * Adds copies of objects of a tier that carry the tokens of this persister, skipping objects deleted meanwhile.
+     */
+    private void view(List<TokenizedObject> objects, ConcurrentHashMap<Long, Entry> tierEntries, List<TokenizedObject> batch) {
+        for (TokenizedObject to : objects) {
+            Entry entry = tierEntries.get(to.token);
+            if (entry != null) batch.add(new TokenizedObject(entry.token, to.data, to.priority, false));
+        }
+    }
+
+    @Override
+    public TokenizedObject getByToken(Long token) throws NoSuchElementException {
+        Entry entry = this.entries.get(token);
+        if (entry == null) throw new NoSuchElementException();
+        synchronized (entry) {
+            TokenizedObject to = entry.tier.getByToken(entry.inner);
+            return new TokenizedObject(entry.token, to.data, to.priority, false);
+        }
+    }
+
+    public void delete(Long token) {
+        Entry entry = this.entries.remove(token);
+        if (entry == null) return;
+        synchronized (entry) {
+            entry.deleted = true;
+            (entry.tier == this.head ? this.headEntries : this.tailEntries).remove(entry.inner);
+            entry.tier.delete(entry.inner);
+        }
+        this.scheduleRefill();
+    }
+
+    @Override
+    public void delete(Collection<Long> tokens) {
+        for (Long token : tokens) {
+            this.delete(token);
+        }
+    }
+
+    @Override
+    public void release(Long token) {
+        Entry entry = this.entries.get(token);
+        if (entry == null) return;
+        synchronized (entry) {
+            entry.tier.release(entry.inner);
+        }
+    }
+
+    @Override
+    public void onAvailable(Runnable listener) {
+        this.availabilityListener = listener;
+    }
+
+    @Override
+    public void onEvicted(Consumer<Long> listener) {
+        this.evictionListener = listener;
+    }
+
+    private void notifyAvailable() {
+        Runnable listener = this.availabilityListener;
+        if (listener != null) listener.run();
+    }
+
+    /**
+     * Forces outstanding writes of the tail to the storage device. Messages in the head are only written to the
+     * tail on close().
+     */
+    @Override
+    public void flush() {
+        this.tail.flush();
+    }
+
+    /**
+     * Spills the messages of the head to the tail and closes the tail. Messages that have not been deleted will be
+     * recovered by the next persister opened on the same directory.
+     */
+    @Override
+    public synchronized void close() {
+        for (Entry entry : new ArrayList<>(this.headEntries.values())) {
+            synchronized (entry) {
+                if (entry.deleted || entry.tier != this.head) continue;
+                try {
+                    TokenizedObject to = this.head.getByToken(entry.inner);
+                    this.move(entry, this.tail, this.tail.put(to.data, to.priority, false));
+                } catch (NoSuchElementException | PersisterFullException e) {
+                    logger.log(Level.WARNING, "Could not spill message with token " + entry.token + ": " + e.getMessage());
+                }
+            }
+        }
+        this.head.close();
+        this.tail.close();
+    }
+}
@@ -14,16 +14,33 @@
 
 package com.openenergi.flex.persistence;
 
-import java.util.concurrent.Semaphore;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An object alongside a token that can later be used to delete it.
  */
 public class TokenizedObject {
+    /**
+     * Orders objects by priority and then by token, so that objects of equal priority are kept in insertion
+     * order instead of comparing as equal. Persisters issue tokens in increasing order.
+     */
+    public static final Comparator<TokenizedObject> PRIORITY_ORDER = new Comparator<TokenizedObject>() {
+        public int compare(TokenizedObject o1, TokenizedObject o2) {
+            int c = Long.compare(o1.priority, o2.priority);
+            return c != 0 ? c : Long.compare(o1.token, o2.token);
+        }
+    };
+
+    private static final AtomicLong leaseCounter = new AtomicLong(1L);
+
     public Long token;
     public Long priority;
     public Object data;
-    private Semaphore locker;
+    long bytes; //serialized size, if the persister has a byte budget
+    String topic;
+    String device; //id of the device the message is for, if the persister has device quotas
+    private final AtomicLong lease = new AtomicLong(0L); //0 when unlocked, otherwise the id of the current lock
 
     public TokenizedObject(){}
 
@@ -39,9 +56,7 @@ public class TokenizedObject {
         this.data = data;
         this.priority = priority;
         if (locked){
-            this.locker = new Semaphore(0, true);
-        } else {
-            this.locker = new Semaphore(1, true);
+            this.lease.set(leaseCounter.getAndIncrement());
         }
     }
 
@@ -49,14 +64,30 @@ public class TokenizedObject {
      * Tries to lock the object from processing by other threads.
      */
     public Boolean tryAcquire(){
-        return this.locker.tryAcquire();
+        return this.lease.get() == 0L && this.lease.compareAndSet(0L, leaseCounter.getAndIncrement());
     }
 
 
     /**
-     * Releases the object for processing by other threads.
+     * Releases the object for processing by other threads. Idempotent.
      */
     public void release(){
-        this.locker.release();
+        this.lease.set(0L);
+    }
+
+    /**
+     * Returns the id of the lock currently held on the object, or zero if it is unlocked.
+     */
+    long leaseId(){
+        return this.lease.get();
+    }
+
+    /**
+     * Releases the object only if it is still held under the given lock, i.e. it has not been released
+     * (and possibly locked again) since.
+     * @return Whether the object was released.
+     */
+    boolean expire(long leaseId){
+        return leaseId != 0L && this.lease.compareAndSet(leaseId, 0L);
     }
 }
@@ -0,0 +1,219 @@
+package com.openenergi.flex.device;
+
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.MessageContext;
+import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.persistence.MemoryPersister;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class BatchingClientTest {
+
+    /**
+     * Records the payloads instead of sending them to the hub.
+     */
+    private static class RecordingClient extends BasicClient {
+        List<String> payloads = new ArrayList<>();
+        List<MessageContext> contexts = new ArrayList<>();
+        List<ContentEncoding> encodings = new ArrayList<>();
+        int compressedBytes = 0;
+        Consumer<MessageContext> callback;
+
+        RecordingClient() {
+            super("oeiot.azure-devices.net", "d1000000", "EM/3FdzxAxxExOktcF311DNcm8pCWHpLLrHZpmTx+p4=");
+        }
+
+        @Override
+        public synchronized void publishPayload(byte[] payload, MessageContext context) {
+            this.payloads.add(new String(payload, StandardCharsets.UTF_8));
+            this.contexts.add(context);
+        }
+
+        @Override
+        public synchronized void publishPayload(byte[] payload, ContentEncoding encoding, MessageContext context) {
+            try {
+                InputStream in = new ByteArrayInputStream(payload);
+                in = encoding == ContentEncoding.GZIP ? new GZIPInputStream(in) : new InflaterInputStream(in);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+                this.payloads.add(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new AssertionError("Undecodable " + encoding + " payload", e);
+            }
+            this.contexts.add(context);
+            this.encodings.add(encoding);
+            this.compressedBytes += payload.length;
+        }
+
+        @Override
+        public void onPublish(Consumer<MessageContext> callback) {
+            this.callback = callback;
+        }
+
+        void acknowledge(int i, IotHubStatusCode status) {
+            MessageContext ctx = this.contexts.get(i);
+            ctx.setStatus(status);
+            this.callback.accept(ctx);
+        }
+    }
+
+    private static Reading reading(String entity) {
+        return new Reading.Builder()
+                .withValue(1.23)
+                .withEntity(entity)
+                .atTime(1000L)
+                .withType(Reading.Type.POWER)
+                .build();
+    }
+
+    @Test
+    public void testBatchByCount() throws Exception {
+        RecordingClient recorder = new RecordingClient();
+        BatchingClient client = new BatchingClient.Builder(recorder)
+                .withMaxMessages(3)
+                .withLinger(60000L)
+                .build();
+        for (int i = 0; i < 7; i++) {
+            client.publish(reading("l" + i));
+        }
+
+        assertEquals(2, recorder.payloads.size());
+        String payload = recorder.payloads.get(0);
+        assertEquals("[" + reading("l0") + "," + reading("l1") + "," + reading("l2") + "]", payload);
+
+        client.flush();
+        assertEquals(3, recorder.payloads.size());
+        assertEquals(reading("l6").toString(), recorder.payloads.get(2)); //a lone message is not wrapped
+    }
+
+    @Test
+    public void testBatchByBytes() throws Exception {
+        RecordingClient recorder = new RecordingClient();
+        int size = reading("l0").toString().length();
+        BatchingClient client = new BatchingClient.Builder(recorder)
+                .withMaxBytes(2 * size + 3)
+                .withLinger(60000L)
+                .build();
+        for (int i = 0; i < 5; i++) {
+            client.publish(reading("l" + i));
+        }
+
+        assertEquals(2, recorder.payloads.size());
+        for (String payload : recorder.payloads) {
+            assertEquals(2 * size + 3, payload.length());
+            assertEquals(2, payload.split("\\},\\{").length);
+        }
+    }
+
+    @Test
+    public void testLinger() throws Exception {
+        RecordingClient recorder = new RecordingClient();
+        BatchingClient client = new BatchingClient.Builder(recorder)
+                .withLinger(20L)
+                .build();
+        client.publish(reading("l0"));
+        client.publish(reading("l1"));
+        assertEquals(0, recorder.payloads.size());
+
+        for (int i = 0; i < 100 && recorder.payloads.isEmpty(); i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, recorder.payloads.size());
+        assertEquals("[" + reading("l0") + "," + reading("l1") + "]", recorder.payloads.get(0));
+    }
+
+    @Test
+    public void testAcknowledgementFansOut() throws Exception {
+        RecordingClient recorder = new RecordingClient();
+        BatchingClient client = new BatchingClient.Builder(recorder)
+                .withMaxMessages(3)
+                .build();
+        List<MessageContext> acknowledged = new ArrayList<>();
+        client.onPublish(acknowledged::add);
+        for (long i = 0; i < 3; i++) {
+            client.publish(reading("l" + i), new MessageContext(i));
+        }
+
+        recorder.acknowledge(0, IotHubStatusCode.THROTTLED);
+        assertEquals(3, acknowledged.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals((long) i, acknowledged.get(i).getData());
+            assertEquals(IotHubStatusCode.THROTTLED, acknowledged.get(i).getStatus());
+        }
+    }
+
+    @Test
+    public void testRetryingClientOverBatches() throws Exception {
+        RecordingClient recorder = new RecordingClient();
+        BatchingClient batching = new BatchingClient.Builder(recorder)
+                .withMaxMessages(2)
+                .build();
+        MemoryPersister persister = new MemoryPersister(10);
+        RetryingClient client = new RetryingClient(batching, persister);
+        client.publish(reading("l0"));
+        client.publish(reading("l1"));
+        assertEquals(2L, (long) persister.size());
+
+        recorder.acknowledge(0, IotHubStatusCode.OK);
+        assertEquals(0L, (long) persister.size());
+    }
+
+    @Test
+    public void testPublishAsync() throws Exception {
+        RecordingClient recorder = new RecordingClient();
+        BatchingClient client = new BatchingClient.Builder(recorder)
+                .withMaxMessages(2)
+                .build();
+        List<MessageContext> acknowledged = new ArrayList<>();
+        client.onPublish(acknowledged::add);
+        CompletableFuture<IotHubStatusCode> future = client.publishAsync(reading("l0"));
+        client.publish(reading("l1"), new MessageContext(1L));
+
+        recorder.acknowledge(0, IotHubStatusCode.OK);
+        assertEquals(IotHubStatusCode.OK, future.getNow(null));
+        assertEquals(1, acknowledged.size()); //only the message published with a context
+        assertEquals(1L, acknowledged.get(0).getData());
+    }
+    @Test
+    public void testCompression() throws Exception {
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            RecordingClient recorder = new RecordingClient();
+            BatchingClient client = new BatchingClient.Builder(recorder)
+                    .withMaxMessages(20)
+                    .withLinger(60000L)
+                    .withCompression(encoding, 500)
+                    .build();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                client.publish(reading("l" + i));
+                expected.append(i == 0 ? "[" : ",").append(reading("l" + i));
+            }
+            client.publish(reading("l20"));
+            client.flush();
+
+            assertEquals(2, recorder.payloads.size());
+            assertEquals(expected.append("]").toString(), recorder.payloads.get(0));
+            assertEquals(encoding, recorder.encodings.get(0));
+            assertTrue(recorder.compressedBytes < expected.length() / 4);
+            assertEquals(1, recorder.encodings.size()); //the lone message is under the threshold
+            assertEquals(reading("l20").toString(), recorder.payloads.get(1));
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.openenergi.flex.device;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testBackoffIsBoundedAndExponential() {
+        Backoff backoff = new Backoff(100L, 1000L);
+        long[] ceilings = {100L, 200L, 400L, 800L, 1000L, 1000L};
+        for (long ceiling : ceilings) {
+            long delay = backoff.next();
+            assertTrue(delay >= 0 && delay <= ceiling);
+        }
+        backoff.reset();
+        assertTrue(backoff.next() <= 100L);
+    }
+
+    @Test
+    public void testProbeAfterBackoff() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(new Backoff(20L, 20L), 1, 1000L);
+        assertTrue(breaker.isClosed());
+        assertFalse(breaker.tryProbe());
+
+        breaker.failure();
+        assertFalse(breaker.isClosed()); //open, or already half-open if the jittered backoff was zero
+        Thread.sleep(30L);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertTrue(breaker.tryProbe());
+        assertFalse(breaker.tryProbe()); //only one probe at a time
+
+        breaker.failure(); //the probe failed
+        assertFalse(breaker.isClosed());
+        Thread.sleep(30L);
+
+        assertTrue(breaker.tryProbe());
+        assertTrue(breaker.success());
+        assertTrue(breaker.isClosed());
+        assertFalse(breaker.success());
+    }
+
+    @Test
+    public void testFailureThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(new Backoff(1000L, 1000L), 3, 1000L);
+        breaker.failure();
+        breaker.failure();
+        assertTrue(breaker.isClosed());
+        breaker.failure();
+        assertFalse(breaker.isClosed());
+    }
+}
@@ -0,0 +1,78 @@
+package com.openenergi.flex.device;
+
+import com.openenergi.flex.message.Codec;
+import com.openenergi.flex.message.Reading;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the compression ratio and CPU cost of compressing batches of readings, for each encoding and deflate
+ * level. The break-even bandwidth is the link speed below which compressing a batch saves more transmission time
+ * than it costs in CPU time: on slower links compression pays off.
+ *
+ * Run with {@code java -cp <test classpath> com.openenergi.flex.device.CompressorBenchmark}.
+ */
+public class CompressorBenchmark {
+    private static final long ITERATION_NANOS = 200_000_000L;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int[] batchSizes = {10, 100, 1000};
+        int[] levels = {1, 6, 9};
+        for (int round = 0; round < 2; round++) { //the first round warms up the JIT
+            for (Codec codec : new Codec[]{Codec.JSON, Codec.CBOR}) {
+                for (int batchSize : batchSizes) {
+                    byte[] payload = codec.pack(batch(batchSize, codec));
+                    for (ContentEncoding encoding : ContentEncoding.values()) {
+                        for (int level : levels) {
+                            run(codec, batchSize, payload, encoding, level, round == 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<byte[]> batch(int size, Codec codec) {
+        Random random = new Random(size);
+        List<byte[]> payloads = new ArrayList<>(size);
+        long now = 1500000000000L;
+        for (int i = 0; i < size; i++) {
+            payloads.add(new Reading.Builder()
+                    .withEntity("battery-" + i)
+                    .withType(Reading.Type.POWER)
+                    .atTime(now + random.nextInt(1000))
+                    .withValue(Math.round(random.nextDouble() * 100000) / 100.)
+                    .build()
+                    .toBytes(codec));
+        }
+        return payloads;
+    }
+
+    private static void run(Codec codec, int batchSize, byte[] payload, ContentEncoding encoding, int level, boolean report) {
+        Compressor compressor = new Compressor(encoding, level, 0);
+        byte[] compressed = compressor.compress(payload);
+        int compressedSize = compressed == null ? payload.length : compressed.length;
+
+        int iterations = 0;
+        long start = System.nanoTime();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        while (System.nanoTime() - start < ITERATION_NANOS) {
+            compressor.compress(payload);
+            iterations++;
+        }
+        long cpu = (threads.getCurrentThreadCpuTime() - cpuStart) / iterations;
+
+        if (report) {
+            double saved = payload.length - compressedSize;
+            double breakEven = saved * 8 / (cpu / 1e9) / 1e6; //Mbit/s
+            System.out.println(String.format("%-4s batch=%4d  %-7s level=%d  %7d -> %6d bytes  ratio=%5.2f  cpu=%8.1f us  %6.1f MB/s  break-even=%8.1f Mbit/s",
+                    codec.getName(), batchSize, encoding.getValue(), level, payload.length, compressedSize,
+                    (double) payload.length / compressedSize, cpu / 1e3, payload.length / (cpu / 1e9) / 1e6, breakEven));
+        }
+    }
+}
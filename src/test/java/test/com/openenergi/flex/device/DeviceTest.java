@@ -1,9 +1,13 @@
 package com.openenergi.flex.device;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import com.microsoft.azure.iothub.IotHubStatusCode;
 import com.openenergi.flex.message.Event;
 import com.openenergi.flex.message.MessageContext;
 
@@ -46,5 +50,35 @@ public class DeviceTest {
 		
 	}
 
-	
+	@Test
+	public void testPublishWhileDisconnected() {
+		BasicClient client = new BasicClient("oeiot.azure-devices.net", "d1000000", "EM/3FdzxAxxExOktcF311DNcm8pCWHpLLrHZpmTx+p4=");
+		assertEquals(ConnectionState.DISCONNECTED, client.getState());
+		List<IotHubStatusCode> statuses = new ArrayList<>();
+		client.onPublish((MessageContext pub) -> statuses.add(pub.getStatus()));
+		Event e = new Event.Builder()
+		.withValue("testing")
+		.withLevel(Event.Level.DEBUG)
+		.withEntity("l1")
+		.withCustomType("test").build();
+		client.publish(e, new MessageContext(1L));
+		assertEquals(1, statuses.size());
+		assertEquals(IotHubStatusCode.ERROR, statuses.get(0));
+		client.disconnect(); //idempotent
+		assertEquals(ConnectionState.DISCONNECTED, client.getState());
+	}
+
+	@Test
+	public void testPublishAsyncWhileDisconnected() throws Exception {
+		BasicClient basic = new BasicClient("oeiot.azure-devices.net", "d1000000", "EM/3FdzxAxxExOktcF311DNcm8pCWHpLLrHZpmTx+p4=");
+		Event e = new Event.Builder()
+		.withValue("testing")
+		.withLevel(Event.Level.DEBUG)
+		.withEntity("l1")
+		.withCustomType("test").build();
+		for (Client client : new Client[]{basic, new BatchingClient.Builder(basic).withMaxMessages(1).build()}) {
+			assertEquals(IotHubStatusCode.ERROR, client.publishAsync(e).get(1, TimeUnit.SECONDS));
+		}
+	}
+
 }
@@ -1,8 +1,10 @@
 package com.openenergi.flex.device;
 
 import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.message.ReadingBatch;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 
@@ -47,4 +49,22 @@ public class FFRPrioritizerTest {
         assertTrue(p.score(e1) > p.score(e2));
     }
 
+    @Test
+    public void testScoreBatch(){
+        ReadingBatch.Builder builder = new ReadingBatch.Builder();
+        ReadingBatch other = builder
+                .add("l1", "something", 12345L, 1.23)
+                .add("l2", "something", 12346L, 1.23)
+                .build();
+        ReadingBatch ffr = builder
+                .add("l1", "something", 12345L, 1.23)
+                .add("l2", Reading.Type.POWER, 12346L, 1.23)
+                .build();
+
+        FFRPrioritizer p = new FFRPrioritizer();
+
+        assertEquals(12346L, (long) p.score(other));
+        assertEquals(2 * 12346L, (long) p.score(ffr));
+    }
+
 }
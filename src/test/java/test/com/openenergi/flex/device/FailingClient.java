@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
@@ -20,14 +21,20 @@ import java.util.function.Consumer;
  */
 public class FailingClient implements Client {
     private Consumer<MessageContext> msgCallback;
+    private Consumer<Signal<?>> sigCallback;
+    private Consumer<ConnectionState> stateCallback;
     private boolean silent = false;
     public List<Message> published = new ArrayList<Message>();
+    public List<MessageContext> contexts = new ArrayList<MessageContext>(); //of every message passed to publish()
+    public boolean disconnected = false;
 
     @Override
     public void connect() throws IOException {}
 
     @Override
-    public void disconnect(){}
+    public void disconnect(){
+        this.disconnected = true;
+    }
 
     @Override
     public void publish(Message msg) {
@@ -36,9 +43,18 @@ public class FailingClient implements Client {
 
     @Override
     public void publish(Message msg, MessageContext ctx) {
+        this.contexts.add(ctx);
         this.publishWithStatusCode(msg, ctx, IotHubStatusCode.OK);
     }
 
+    @Override
+    public CompletableFuture<IotHubStatusCode> publishAsync(Message msg) {
+        CompletableFuture<IotHubStatusCode> future = new CompletableFuture<>();
+        this.published.add(msg);
+        future.complete(IotHubStatusCode.OK);
+        return future;
+    }
+
     /**
      * This means that no acknowledgement of message will ever be sent. Use to
      * mock scenarios where a non-standard return code is required by surrounding
@@ -79,11 +95,30 @@ public class FailingClient implements Client {
 
     @Override
     public void onSignal(Consumer<Signal<?>> sig) {
-        return;
+        this.sigCallback = sig;
+    }
+
+    /**
+     * Mocks a signal arriving from the hub.
+     */
+    public void receive(Signal<?> signal) {
+        if (this.sigCallback != null) this.sigCallback.accept(signal);
     }
 
     @Override
     public void disableSubscription() {
         return;
     }
+
+    @Override
+    public void onStateChange(Consumer<ConnectionState> callback) {
+        this.stateCallback = callback;
+    }
+
+    /**
+     * Mocks a change of the state of the connection.
+     */
+    public void setState(ConnectionState state) {
+        if (this.stateCallback != null) this.stateCallback.accept(state);
+    }
 }
@@ -0,0 +1,224 @@
+package com.openenergi.flex.device;
+
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.Message;
+import com.openenergi.flex.message.MessageContext;
+import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.persistence.MemoryPersister;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class GatewayClientTest {
+
+    private static Reading reading(String deviceId) {
+        return reading(deviceId, 12345L);
+    }
+
+    private static Reading reading(String deviceId, Long timestamp) {
+        Reading reading = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(timestamp)
+                .withType(Reading.Type.POWER)
+                .build();
+        reading.setDeviceId(deviceId);
+        return reading;
+    }
+
+    @Test
+    public void testRouting() {
+        FailingClient d1 = new FailingClient();
+        FailingClient d2 = new FailingClient();
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net").build();
+        gateway.addDevice("d1", d1);
+        gateway.addDevice("d2", d2);
+
+        gateway.publish(reading("d1"));
+        gateway.publish(reading("d2"));
+        gateway.publish(reading("d2"), new MessageContext(1L)); //the context is ignored
+        assertEquals(1, d1.published.size());
+        assertEquals(2, d2.published.size());
+
+        try {
+            gateway.publish(reading("d3"));
+            fail("Should throw");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testBackoffIsPerDevice() throws Exception {
+        FailingClient d1 = new FailingClient();
+        FailingClient d2 = new FailingClient();
+        MemoryPersister p = new MemoryPersister(10);
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .withBackoff(60000L, 60000L)
+                .build();
+        gateway.addDevice("d1", d1);
+        gateway.addDevice("d2", d2);
+
+        d1.setPropagation(false);
+        Long token = gateway.publishAndGetToken(reading("d1"));
+        d1.setPropagation(true);
+        d1.publishWithStatusCode(reading("d1"), new MessageContext(token), IotHubStatusCode.THROTTLED);
+        d1.published.clear();
+
+        gateway.publish(reading("d1")); //buffered while d1 backs off
+        gateway.publish(reading("d2"));
+        Thread.sleep(50L);
+        assertEquals(0, d1.published.size());
+        assertEquals(1, d2.published.size());
+        assertEquals(2L, (long) p.size());
+    }
+
+    @Test
+    public void testBufferedMessagesHeldUntilDeviceAdded() throws Exception {
+        FailingClient d1 = new FailingClient();
+        MemoryPersister p = new MemoryPersister(10);
+        p.put(reading("d1"), 1L, false); //eg. recovered from disk
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .build();
+        Thread.sleep(100L);
+        assertEquals(1L, (long) p.size());
+
+        gateway.addDevice("d1", d1);
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (p.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, d1.published.size());
+        assertEquals(0L, (long) p.size());
+    }
+
+    @Test
+    public void testOfflineDeviceOnlyEvictsItsOwnMessages() throws Exception {
+        FailingClient d1 = new FailingClient();
+        FailingClient d2 = new FailingClient();
+        MemoryPersister p = new MemoryPersister.Builder().withCapacity(10).withDeviceQuota(5).build();
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .build();
+        gateway.addDevice("d1", d1);
+        gateway.addDevice("d2", d2);
+
+        d2.setState(ConnectionState.RECONNECTING);
+        Long kept = gateway.publishAndGetToken(reading("d2", 1L));
+        d1.setState(ConnectionState.RECONNECTING);
+        for (long i = 0; i < 20; i++) {
+            gateway.publish(reading("d1", 100L + i)); //outranks the message of d2
+        }
+        assertEquals(6L, (long) p.size());
+        assertEquals("d2", ((Message) p.getByToken(kept).data).getDeviceId());
+    }
+
+    @Test
+    public void testHeldMessagesNotDuplicatedAfterLeaseExpiry() throws Exception {
+        FailingClient d1 = new FailingClient();
+        MemoryPersister p = new MemoryPersister.Builder().withCapacity(10).withLeaseTimeout(20L).build();
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .build();
+        gateway.addDevice("d1", d1);
+
+        d1.setState(ConnectionState.RECONNECTING);
+        gateway.publish(reading("d1", 1L));
+        gateway.publish(reading("d1", 2L));
+        p.put(reading("d3"), 1L, false); //for a device that has not been added
+        Thread.sleep(300L); //leases expire and the messages are offered again
+        assertEquals(3, gateway.heldCount());
+
+        d1.setState(ConnectionState.CONNECTED);
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (d1.published.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Thread.sleep(50L);
+        assertEquals(2, d1.published.size());
+        assertEquals(1, gateway.heldCount());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        FailingClient d1 = new FailingClient();
+        FailingClient d2 = new FailingClient();
+        MemoryPersister p = new MemoryPersister(10);
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .build();
+        gateway.addDevice("d1", d1);
+        gateway.addDevice("d2", d2);
+
+        d1.setState(ConnectionState.RECONNECTING);
+        gateway.publish(reading("d1"));
+        gateway.publish(reading("d2"));
+        d1.setState(ConnectionState.CONNECTED);
+
+        assertTrue(gateway.close(Duration.ofSeconds(2)));
+        assertEquals(0L, (long) p.size());
+        assertTrue(d1.disconnected);
+        assertTrue(d2.disconnected);
+        try {
+            gateway.publish(reading("d1"));
+            fail("Should reject messages once closed");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testCloseFailsHeldMessages() throws Exception {
+        FailingClient d1 = new FailingClient();
+        MemoryPersister p = new MemoryPersister(10);
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .build();
+        gateway.addDevice("d1", d1);
+
+        d1.setState(ConnectionState.RECONNECTING);
+        CompletableFuture<IotHubStatusCode> future = gateway.publishAsync(reading("d1"));
+        assertFalse(gateway.close(Duration.ofMillis(200L)));
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, gateway.heldCount());
+    }
+
+    @Test
+    public void testReconnectingDeviceFreesItsWindow() throws Exception {
+        FailingClient d1 = new FailingClient();
+        FailingClient d2 = new FailingClient();
+        MemoryPersister p = new MemoryPersister(10);
+        GatewayClient gateway = new GatewayClient.Builder("oeiot.azure-devices.net")
+                .withPersister(p)
+                .withInFlightWindow(2)
+                .build();
+        gateway.addDevice("d1", d1);
+        gateway.addDevice("d2", d2);
+
+        d1.setPropagation(false); //acknowledgements never arrive
+        gateway.publish(reading("d1", 1L));
+        gateway.publish(reading("d1", 2L)); //the window is full
+        gateway.publish(reading("d2", 3L));
+        Thread.sleep(50L);
+        assertEquals(0, d2.published.size());
+
+        d1.setState(ConnectionState.RECONNECTING);
+        for (long i = 4; i < 8; i++) {
+            gateway.publish(reading("d2", i));
+        }
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (d2.published.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(5, d2.published.size());
+        assertEquals(2L, (long) p.size()); //the messages of d1 are kept for its new connection
+        assertEquals(2, gateway.heldCount());
+    }
+}
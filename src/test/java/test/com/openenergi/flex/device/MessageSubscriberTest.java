@@ -0,0 +1,102 @@
+package com.openenergi.flex.device;
+
+import com.microsoft.azure.iothub.IotHubStatusCode;
+import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.persistence.MemoryPersister;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class MessageSubscriberTest {
+    private static class CountingSubscription implements Subscription {
+        volatile long requested = 0; //also requested once room frees up, from another thread
+        volatile String requestedBy;
+        boolean cancelled = false;
+
+        @Override
+        public void request(long n) {
+            this.requested += n;
+            this.requestedBy = Thread.currentThread().getName();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+
+    private static Reading reading() {
+        return new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+    }
+
+    private static void awaitSize(MemoryPersister p, long size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (p.size() > size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(size, (long) p.size());
+    }
+
+    @Test
+    public void testDemandFollowsBufferRoom() throws Exception {
+        FailingClient hub = new FailingClient();
+        hub.setPropagation(false); //a slow hub: acknowledgements are only sent below
+        MemoryPersister p = new MemoryPersister(10);
+        RetryingClient client = new RetryingClient.Builder(hub)
+                .withPersister(p)
+                .withWaterMarks(0.5, 0.8)
+                .build();
+        MessageSubscriber subscriber = new MessageSubscriber(client, 2);
+        CountingSubscription subscription = new CountingSubscription();
+        subscriber.onSubscribe(subscription);
+        assertEquals(2L, subscription.requested);
+
+        long received = 0;
+        while (received < subscription.requested && received < 100) {
+            subscriber.onNext(reading());
+            received++;
+        }
+        //requests stop at the high water mark, with at most the prefetch still to come, before anything is evicted
+        assertEquals(9L, received);
+        assertEquals(9L, subscription.requested);
+        assertEquals(9L, (long) p.size());
+
+        hub.setPropagation(true);
+        for (int i = 0; i < 2; i++) {
+            hub.publishWithStatusCode(reading(), hub.contexts.get(i), IotHubStatusCode.OK);
+        }
+        awaitSize(p, 7L);
+        assertEquals(9L, subscription.requested); //still above the low water mark
+        for (int i = 2; i < 4; i++) {
+            hub.publishWithStatusCode(reading(), hub.contexts.get(i), IotHubStatusCode.OK);
+        }
+        awaitSize(p, 5L);
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (subscription.requested < 11L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(11L, subscription.requested);
+        assertEquals("flex-subscriber", subscription.requestedBy); //not the thread acknowledging messages
+    }
+
+    @Test
+    public void testSecondSubscriptionCancelled() {
+        MessageSubscriber subscriber = new MessageSubscriber(new RetryingClient(new FailingClient(), new MemoryPersister(10)), 10);
+        CountingSubscription first = new CountingSubscription();
+        CountingSubscription second = new CountingSubscription();
+        subscriber.onSubscribe(first);
+        subscriber.onSubscribe(second);
+        assertTrue(second.cancelled);
+        assertEquals(0L, second.requested);
+
+        subscriber.cancel();
+        assertTrue(first.cancelled);
+    }
+}
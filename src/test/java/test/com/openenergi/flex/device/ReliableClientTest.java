@@ -3,17 +3,30 @@ package com.openenergi.flex.device;
 import com.microsoft.azure.iothub.IotHubStatusCode;
 import com.openenergi.flex.message.MessageContext;
 import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.persistence.FilePersister;
 import com.openenergi.flex.persistence.MemoryPersister;
+import com.openenergi.flex.persistence.PersisterFullException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
 public class ReliableClientTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testWithoutFailures() {
         MemoryPersister p = new MemoryPersister(10);
@@ -77,5 +90,367 @@ public class ReliableClientTest {
         assertEquals(1L, p.counter.get()); //double-check that at some point, messages were persisted
     }
 
+    @Test
+    public void testDrainerWokenByPersister() throws Exception {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient(mock, p);
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        Thread.sleep(100L); //let the drainer park on the empty persister
+        p.put(e, 1L, false);
+
+        long deadline = System.currentTimeMillis() + 500L; //well inside the old one second polling interval
+        while (mock.published.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, mock.published.size());
+        assertEquals(0L, (long) p.size());
+    }
+
+    @Test
+    public void testInFlightWindow() throws Exception {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient.Builder(mock)
+                .withPersister(p)
+                .withInFlightWindow(2)
+                .withDrainers(2)
+                .build();
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        mock.setPropagation(false); //acknowledgements never arrive
+        Long[] tokens = new Long[5];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = client.publishAndGetToken(e);
+        }
+        Thread.sleep(200L);
+        assertEquals(2, mock.published.size()); //the rest wait for room in the window
+        assertEquals(5L, (long) p.size());
+
+        mock.setPropagation(true);
+        mock.publishWithStatusCode(e, new MessageContext(tokens[0]), IotHubStatusCode.OK);
+        mock.publishWithStatusCode(e, new MessageContext(tokens[1]), IotHubStatusCode.OK);
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (p.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0L, (long) p.size());
+    }
+
+    @Test
+    public void testBackoffIsPerClient() throws Exception {
+        FailingClient throttled = new FailingClient();
+        FailingClient healthy = new FailingClient();
+        RetryingClient first = new RetryingClient(throttled, new MemoryPersister(10));
+        RetryingClient second = new RetryingClient(healthy, new MemoryPersister(10));
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        throttled.setPropagation(false);
+        Long token = first.publishAndGetToken(e);
+        throttled.setPropagation(true);
+        throttled.publishWithStatusCode(e, new MessageContext(token), IotHubStatusCode.THROTTLED);
+
+        second.publish(e);
+        assertEquals(1, healthy.published.size()); //published directly, not held back by the other client
+    }
+
+    @Test
+    public void testPublishAsync() throws Exception {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient(mock, p);
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        assertEquals(IotHubStatusCode.OK, client.publishAsync(e).get(1, TimeUnit.SECONDS));
+
+        mock.setPropagation(false);
+        CompletableFuture<IotHubStatusCode> rejected = client.publishAsync(e);
+        CompletableFuture<IotHubStatusCode> retried = client.publishAsync(e);
+        mock.setPropagation(true);
+        int sent = mock.contexts.size();
+        mock.publishWithStatusCode(e, new MessageContext(mock.contexts.get(sent - 2).getData()), IotHubStatusCode.BAD_FORMAT);
+        assertEquals(IotHubStatusCode.BAD_FORMAT, rejected.get(1, TimeUnit.SECONDS));
+
+        mock.publishWithStatusCode(e, new MessageContext(mock.contexts.get(sent - 1).getData()), IotHubStatusCode.SERVER_BUSY);
+        assertFalse(retried.isDone()); //retried after the backoff
+        assertEquals(IotHubStatusCode.OK, retried.get(5, TimeUnit.SECONDS));
+        assertEquals(0L, (long) p.size());
+    }
+
+    @Test
+    public void testEvictedFutureFailsUnderLoad() throws Exception {
+        MemoryPersister p = new MemoryPersister(5);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient(mock, p);
+        mock.setState(ConnectionState.RECONNECTING); //messages are only buffered
+
+        CompletableFuture<IotHubStatusCode> future = client.publishAsync(new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(100L)
+                .withCustomType("something").build());
+        for (long i = 0; i < 20; i++) {
+            //higher priorities keep arriving, so the drainer is never idle once the connection is back
+            client.publish(new Reading.Builder()
+                    .withValue(1.23)
+                    .withEntity("l1")
+                    .atTime(1000L + i)
+                    .withCustomType("something").build());
+        }
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            fail("Should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PersisterFullException);
+        }
+        assertEquals(5L, (long) p.size());
+    }
+
+    @Test
+    public void testPausedWhileReconnecting() throws Exception {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient(mock, p);
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        mock.setPropagation(false);
+        client.publish(e); //in flight on the connection about to die
+        assertEquals(1, mock.contexts.size());
+
+        mock.setState(ConnectionState.RECONNECTING);
+        client.publish(e);
+        Thread.sleep(200L);
+        assertEquals(1, mock.contexts.size()); //only buffered
+        assertEquals(2L, (long) p.size());
+
+        mock.setPropagation(true);
+        mock.setState(ConnectionState.CONNECTED);
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (p.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0L, (long) p.size()); //including the message in flight when the connection died
+        assertEquals(3, mock.contexts.size());
+    }
+
+    @Test
+    public void testCloseDrainsBuffer() throws Exception {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient(mock, p);
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        mock.setState(ConnectionState.RECONNECTING);
+        client.publish(e);
+        client.publish(e);
+        assertEquals(2L, (long) p.size());
+        mock.setState(ConnectionState.CONNECTED);
+
+        assertTrue(client.close(Duration.ofSeconds(2)));
+        assertEquals(0L, (long) p.size());
+        try {
+            client.publish(e);
+            fail("Should reject messages once closed");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testCloseKeepsUndeliveredMessages() throws Exception {
+        String dir = folder.getRoot().getPath();
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient(mock, new FilePersister(dir, 10));
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        mock.setPropagation(false); //acknowledgements never arrive
+        client.publish(e);
+        CompletableFuture<IotHubStatusCode> future = client.publishAsync(e);
+        assertFalse(client.close(Duration.ofMillis(200L)));
+        assertTrue(future.isCompletedExceptionally());
+
+        FilePersister recovered = new FilePersister(dir, 10);
+        assertEquals(2L, (long) recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void testAdmissionReject() {
+        MemoryPersister p = new MemoryPersister(2);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient.Builder(mock)
+                .withPersister(p)
+                .withAdmissionPolicy(AdmissionPolicy.REJECT)
+                .build();
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        mock.setPropagation(false);
+        assertTrue(client.offer(e).isAccepted());
+        assertTrue(client.offer(e).isAccepted());
+        assertEquals(1.0, client.getUtilisation(), 0.0);
+        PublishResult rejected = client.offer(e);
+        assertEquals(PublishResult.Status.REJECTED, rejected.getStatus());
+        assertEquals(-1L, (long) rejected.getToken());
+        assertEquals(2, mock.contexts.size()); //the rejected message is not sent
+    }
+
+    @Test
+    public void testAdmissionBlock() throws Exception {
+        MemoryPersister p = new MemoryPersister(2);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient.Builder(mock)
+                .withPersister(p)
+                .withAdmissionPolicy(AdmissionPolicy.BLOCK)
+                .withBlockTimeout(200L)
+                .build();
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+
+        mock.setPropagation(false);
+        Long first = client.publishAndGetToken(e);
+        client.publishAndGetToken(e);
+        assertFalse(client.offer(e).isAccepted()); //timed out
+
+        Thread acknowledger = new Thread(() -> {
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException ignored) {
+            }
+            mock.setPropagation(true);
+            mock.publishWithStatusCode(e, new MessageContext(first), IotHubStatusCode.OK);
+        });
+        acknowledger.start();
+        assertTrue(client.offer(e).isAccepted()); //admitted once the first message is delivered
+        acknowledger.join();
+    }
+
+    @Test
+    public void testAdmissionBlockWokenByRollup() throws Exception {
+        MemoryPersister p = new MemoryPersister.Builder()
+                .withCapacity(4)
+                .withRollup(1.0, 1000L)
+                .build();
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient.Builder(mock)
+                .withPersister(p)
+                .withAdmissionPolicy(AdmissionPolicy.BLOCK)
+                .withBlockTimeout(2000L)
+                .build();
+
+        mock.setPropagation(false);
+        for (long i = 0; i < 4; i++) {
+            client.publish(new Reading.Builder().withValue(i).withEntity("l1").atTime(1000000L + i).withType(Reading.Type.POWER).build());
+        }
+        assertEquals(1.0, client.getUtilisation(), 0.0); //in flight, so they cannot be rolled up
+
+        AtomicInteger accepted = new AtomicInteger(0);
+        Thread producer = new Thread(() -> {
+            if (client.offer(new Reading.Builder().withValue(1.0).withEntity("l2").withType(Reading.Type.POWER).build()).isAccepted()) {
+                accepted.incrementAndGet();
+            }
+        });
+        producer.start();
+        Thread.sleep(100L);
+
+        mock.setState(ConnectionState.RECONNECTING); //hands the readings back, so that they can be rolled up
+        p.put(new Reading.Builder().withValue(4.0).withEntity("l1").atTime(1000004L).withType(Reading.Type.POWER).build(), Long.MAX_VALUE, false);
+        producer.join(1000L);
+        assertEquals(1, accepted.get()); //admitted once the roll-up freed room, well before the timeout
+    }
+
+    @Test
+    public void testAdmissionRejectUnderContention() throws Exception {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient.Builder(mock)
+                .withPersister(p)
+                .withAdmissionPolicy(AdmissionPolicy.REJECT)
+                .build();
+        mock.setState(ConnectionState.RECONNECTING); //messages stay in the buffer
+
+        AtomicInteger accepted = new AtomicInteger(0);
+        Thread[] producers = new Thread[8];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    Reading e = new Reading.Builder().withValue(1.0).withEntity("l1").withType(Reading.Type.POWER).build();
+                    if (client.offer(e).isAccepted()) accepted.incrementAndGet();
+                }
+            });
+        }
+        for (Thread producer : producers) producer.start();
+        for (Thread producer : producers) producer.join();
+        assertEquals(10, accepted.get()); //none of them evicted another
+        assertEquals(10L, (long) p.size());
+    }
+
+    @Test
+    public void testWaterMarks() {
+        MemoryPersister p = new MemoryPersister(10);
+        FailingClient mock = new FailingClient();
+        RetryingClient client = new RetryingClient.Builder(mock)
+                .withPersister(p)
+                .withWaterMarks(0.2, 0.5)
+                .build();
+        Reading e = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something").build();
+        AtomicInteger high = new AtomicInteger(0);
+        AtomicInteger low = new AtomicInteger(0);
+        client.onHighWaterMark(high::incrementAndGet);
+        client.onLowWaterMark(low::incrementAndGet);
+
+        mock.setPropagation(false);
+        for (int i = 0; i < 6; i++) {
+            client.publish(e);
+        }
+        assertEquals(1, high.get());
+        assertEquals(0, low.get());
+
+        mock.setPropagation(true);
+        for (int i = 0; i < 4; i++) {
+            mock.publishWithStatusCode(e, mock.contexts.get(i), IotHubStatusCode.OK);
+        }
+        assertEquals(1, low.get());
+        assertEquals(1, high.get());
+    }
 
 }
@@ -0,0 +1,89 @@
+package com.openenergi.flex.device;
+
+import com.openenergi.flex.message.Signal;
+import com.openenergi.flex.message.SignalPointItem;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SignalPublisherTest {
+    private static class RecordingSubscriber implements Subscriber<Signal<?>> {
+        Subscription subscription;
+        List<Signal<?>> received = new ArrayList<>();
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            this.subscription = s;
+        }
+
+        @Override
+        public void onNext(Signal<?> signal) {
+            this.received.add(signal);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            this.error = t;
+        }
+
+        @Override
+        public void onComplete() {}
+    }
+
+    private static Signal<?> signal(String entity) {
+        Signal<SignalPointItem> signal = new Signal<>();
+        signal.addEntity(entity);
+        signal.setType("oe-add");
+        signal.setTimestamp(12345L);
+        return signal;
+    }
+
+    @Test
+    public void testDeliversOnDemand() {
+        FailingClient mock = new FailingClient();
+        SignalPublisher publisher = new SignalPublisher(mock);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        mock.receive(signal("l1"));
+        mock.receive(signal("l2"));
+        assertEquals(0, subscriber.received.size()); //nothing requested yet
+
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.received.size());
+        assertEquals("l1", subscriber.received.get(0).getEntities().get(0));
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE); //demand saturates rather than overflowing
+        mock.receive(signal("l3"));
+        assertEquals(3, subscriber.received.size());
+    }
+
+    @Test
+    public void testCancelAndInvalidRequest() {
+        FailingClient mock = new FailingClient();
+        SignalPublisher publisher = new SignalPublisher(mock);
+        RecordingSubscriber cancelled = new RecordingSubscriber();
+        RecordingSubscriber invalid = new RecordingSubscriber();
+        publisher.subscribe(cancelled);
+        publisher.subscribe(invalid);
+
+        cancelled.subscription.request(10);
+        cancelled.subscription.cancel();
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+
+        invalid.subscription.request(10); //no longer subscribed
+        mock.receive(signal("l1"));
+        assertEquals(0, cancelled.received.size());
+        assertEquals(0, invalid.received.size());
+    }
+}
@@ -0,0 +1,73 @@
+package com.openenergi.flex.message;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+
+
+public class CodecTest {
+
+	private static Reading reading(String entity, double value) {
+		return new Reading.Builder()
+				.withEntity(entity)
+				.withType(Reading.Type.POWER)
+				.atTime(1500000000000L)
+				.withValue(value)
+				.build();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Reading reading = reading("l1", 1.5);
+		reading.setDeviceId("gw-1");
+		reading.setCreatedAt(new Date(1500000000123L));
+		Event event = new Event.Builder()
+				.withEntity("s12")
+				.withCustomType("state-of-charge")
+				.withLevel(Event.Level.WARN)
+				.withValue("State of charge below 10%")
+				.atTime(1500000000000L)
+				.build();
+		ReadingBatch batch = new ReadingBatch.Builder()
+				.add("l1", Reading.Type.POWER, 1000L, 1.5)
+				.add("l2", Reading.Type.SETPOINT, 1001L, -2.)
+				.build();
+
+		for (Message msg : Arrays.asList(reading, event, batch)){
+			byte[] cbor = msg.toBytes(Codec.CBOR);
+			assertTrue(cbor.length < msg.toBytes().length);
+			Message decoded = (Message) Message.deserialize(cbor, Codec.CBOR);
+			assertEquals(msg.getClass(), decoded.getClass());
+			assertEquals(msg.toString(), decoded.toString());
+			assertSame(cbor, decoded.toBytes(Codec.CBOR));
+		}
+	}
+
+	@Test
+	public void testEncodePerCodec() {
+		Reading reading = reading("l1", 1.5);
+		byte[] json = reading.encode();
+		assertSame(json, reading.toBytes());
+
+		byte[] cbor = reading.encode(Codec.CBOR);
+		assertSame(cbor, reading.toBytes(Codec.CBOR));
+		assertNotSame(json, reading.toBytes());
+		assertArrayEquals(json, reading.toBytes());
+	}
+
+	@Test
+	public void testPack() throws Exception {
+		for (Codec codec : Arrays.asList(Codec.JSON, Codec.CBOR)){
+			byte[] packed = codec.pack(Arrays.asList(reading("l1", 1.), reading("l2", 2.)).stream()
+					.map((Reading r) -> r.toBytes(codec))
+					.collect(java.util.stream.Collectors.toList()));
+			ReadingBatch batch = (ReadingBatch) codec.deserialize(packed);
+			assertEquals(2, batch.size());
+			assertEquals("l2", batch.entityAt(1));
+			assertEquals(2., batch.valueAt(1), 0.);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.openenergi.flex.message;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class MessageEncoderTest {
+	private static void assertSameAsJackson(Message msg) {
+		byte[] encoded = MessageEncoder.encode(msg);
+		assertNotNull(encoded);
+		assertArrayEquals(msg.toString(), msg.toString().getBytes(StandardCharsets.UTF_8), encoded);
+	}
+
+	private static String randomString(Random r) {
+		StringBuilder sb = new StringBuilder();
+		int length = r.nextInt(20);
+		for (int i = 0; i < length; i++) {
+			switch (r.nextInt(4)) {
+				case 0: sb.append((char) r.nextInt(0x80)); break;
+				case 1: sb.append((char) (0x80 + r.nextInt(0x780))); break;
+				case 2: sb.append((char) (0x800 + r.nextInt(0xD000 - 0x800))); break;
+				default: sb.appendCodePoint(0x10000 + r.nextInt(0x100000));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testReading() {
+		Reading e = new Reading.Builder()
+				.withValue(1.23)
+				.withEntity("l1")
+				.atTime(12345L)
+				.withType(Reading.Type.POWER)
+				.build();
+		assertSameAsJackson(e);
+
+		e.setDeviceId("d1");
+		e.setProvenance("gateway");
+		e.setCreatedAt(new Date(1477494840123L));
+		e.setMin(-1.0);
+		e.setMax(1e10);
+		e.setSamples(3);
+		assertSameAsJackson(e);
+
+		Reading empty = new Reading();
+		empty.setTimestamp(-5L);
+		assertSameAsJackson(empty);
+	}
+
+	private static Event event(String value) {
+		return new Event.Builder()
+				.withValue(value)
+				.withLevel(Event.Level.INFO)
+				.withEntity("l1")
+				.withCustomType("log")
+				.atTime(12345L)
+				.build();
+	}
+
+	private static String repeat(String s, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testEscapesMixedWithMultibyteCharacters() {
+		//escapes take more room than the characters after them were given
+		assertSameAsJackson(event("\u0001" + repeat("\u4e2d", 300)));
+		assertSameAsJackson(event(repeat("\u0001", 10000) + repeat("\u4e2d", 30000))); //larger than a retained buffer
+		assertSameAsJackson(event(repeat("\n\u001f\"", 5000) + repeat("\ud83d\ude00\u4e2d\u00e9", 10000)));
+		assertSameAsJackson(event(repeat("\u0002\ud83d\ude00\t\u4e2d", 20000)));
+	}
+
+	@Test
+	public void testEvent() {
+		Event e = new Event.Builder()
+				.withValue("x\"\\/\u0001\b\t\n\f\r\u001f\u007f\u00e9\u20ac \ud83d\ude00")
+				.withLevel(Event.Level.WARN)
+				.withEntity("s1")
+				.withCustomType("state-of-charge")
+				.atTime(1L)
+				.build();
+		assertSameAsJackson(e);
+
+		e.setDeviceId("d1");
+		e.setProvenance("p");
+		e.setCreatedAt(new Date(0L));
+		e.setValue(null);
+		assertSameAsJackson(e);
+	}
+
+	@Test
+	public void testRandomMessages() {
+		Random r = new Random(42L);
+		for (int i = 0; i < 2000; i++) {
+			Message msg;
+			if (r.nextBoolean()) {
+				Reading reading = new Reading();
+				reading.setValue(r.nextBoolean() ? r.nextDouble() * Math.pow(10, r.nextInt(40) - 20) : (double) r.nextInt());
+				if (r.nextBoolean()) reading.setMin(-r.nextDouble());
+				if (r.nextBoolean()) reading.setMax(r.nextGaussian() * 1e6);
+				if (r.nextBoolean()) reading.setSamples(r.nextInt(100000));
+				msg = reading;
+			} else {
+				Event event = new Event();
+				event.setLevel(Event.Level.values()[r.nextInt(4)]);
+				event.setValue(randomString(r));
+				msg = event;
+			}
+			msg.setTimestamp(r.nextLong());
+			if (r.nextBoolean()) msg.setEntity(randomString(r));
+			if (r.nextBoolean()) msg.setType(randomString(r));
+			if (r.nextBoolean()) msg.setDeviceId(randomString(r));
+			if (r.nextBoolean()) msg.setProvenance(randomString(r));
+			if (r.nextBoolean()) msg.setCreatedAt(new Date((long) (r.nextDouble() * 253402300799999L)));
+			assertSameAsJackson(msg);
+		}
+	}
+
+	@Test
+	public void testFallsBackToJackson() {
+		Reading nan = new Reading.Builder().withValue(Double.NaN).withEntity("l1").withCustomType("power").build();
+		assertNull(MessageEncoder.encode(nan));
+		assertArrayEquals(nan.toString().getBytes(StandardCharsets.UTF_8), nan.toBytes());
+
+		Event split = new Event.Builder().withValue("\ud83d").withLevel(Event.Level.INFO).build();
+		assertNull(MessageEncoder.encode(split));
+
+		Event noLevel = new Event();
+		assertNull(MessageEncoder.encode(noLevel));
+
+		Reading custom = new Reading() {};
+		custom.setValue(1.0);
+		assertNull(MessageEncoder.encode(custom)); //eg. a class registered with registerMessageMapper()
+		assertArrayEquals(custom.toString().getBytes(StandardCharsets.UTF_8), custom.toBytes());
+	}
+}
@@ -0,0 +1,101 @@
+package com.openenergi.flex.message;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class ReadingBatchTest {
+
+	private static String jackson(ReadingBatch batch) {
+		StringBuilder json = new StringBuilder("[");
+		for (Reading reading : batch.toReadings()){
+			if (json.length() > 1) json.append(',');
+			json.append(reading.toString());
+		}
+		return json.append(']').toString();
+	}
+
+	@Test
+	public void testEncode() {
+		ReadingBatch batch = new ReadingBatch.Builder()
+				.withDeviceId("gw-1")
+				.add("l1", Reading.Type.POWER, 1000L, 1.5)
+				.add("l2", Reading.Type.POWER, 1001L, -2.)
+				.add("l\"3\u00e9", "custom\ntype", 999L, 1e-7)
+				.build();
+
+		assertEquals(jackson(batch), new String(batch.toBytes(), StandardCharsets.UTF_8));
+		assertEquals(jackson(batch), batch.toString());
+		assertEquals(1001L, (long) batch.getTimestamp());
+		assertEquals("readings", batch.getTopic());
+		assertNull(batch.getType());
+	}
+
+	@Test
+	public void testEncodeFallback() {
+		ReadingBatch batch = new ReadingBatch.Builder()
+				.add("l1", Reading.Type.POWER, 1000L, Double.NaN)
+				.build();
+
+		assertEquals(jackson(batch), new String(batch.toBytes(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testReuseBuilder() {
+		ReadingBatch.Builder builder = new ReadingBatch.Builder();
+		for (int i = 0; i < 100; i++){
+			builder.add("l" + i, Reading.Type.POWER, i, i);
+		}
+		ReadingBatch first = builder.build();
+		assertEquals(0, builder.size());
+
+		builder.add("l7", Reading.Type.SETPOINT, 5000L, 7.);
+		ReadingBatch second = builder.build();
+
+		assertEquals(100, first.size());
+		assertEquals("l99", first.entityAt(99));
+		assertEquals(99., first.valueAt(99), 0.);
+		assertEquals("power", first.getType());
+		assertEquals(1, second.size());
+		assertEquals("l7", second.entityAt(0));
+		assertEquals("setpoint", second.typeAt(0));
+		assertTrue(second.hasType("setpoint"));
+		assertFalse(second.hasType("power"));
+
+		try {
+			builder.build();
+			fail("Built an empty batch");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	@Test
+	public void testDeserialize() throws Exception {
+		ReadingBatch batch = new ReadingBatch.Builder()
+				.withDeviceId("gw-1")
+				.add("l1", Reading.Type.POWER, 1000L, 1.5)
+				.add("l2", Reading.Type.AVAILABILITY_FFR_LOW, 1001L, 2.5)
+				.build();
+
+		ReadingBatch m = (ReadingBatch) Message.deserialize(batch.toBytes());
+		assertEquals(2, m.size());
+		assertEquals("gw-1", m.getDeviceId());
+		assertEquals("l2", m.entityAt(1));
+		assertEquals("availability-ffr-low", m.typeAt(1));
+		assertEquals(1001L, m.timestampAt(1));
+		assertEquals(2.5, m.valueAt(1), 0.);
+
+		List<Reading> readings = m.toReadings();
+		assertEquals("l1", readings.get(0).getEntity());
+
+		try {
+			Message.deserialize("[" + new Event.Builder().withEntity("l1").withCustomType("something").withLevel(Event.Level.INFO).build().toString() + "]");
+			fail("Deserialized a batch of events");
+		} catch (java.io.IOException expected) {
+		}
+	}
+}
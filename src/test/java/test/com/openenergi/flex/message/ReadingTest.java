@@ -5,8 +5,12 @@ import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
@@ -50,4 +54,41 @@ public class ReadingTest {
 		}
 	}
 	
+	@Test
+	public void testEncodeOnce() throws Exception {
+		Reading e = new Reading.Builder()
+					.withValue(1.23)
+					.withEntity("l1")
+					.atTime(12345L)
+					.withCustomType("something")
+					.build();
+
+		byte[] encoded = e.encode();
+		JSONAssert.assertEquals(e.toString(), new String(encoded, StandardCharsets.UTF_8), true);
+		assertSame(encoded, e.toBytes()); //not serialized again
+		assertSame(encoded, e.encode());
+
+		Reading m = (Reading) Message.deserialize(encoded);
+		assertSame(encoded, m.toBytes()); //keeps the bytes it was read from
+	}
+
+	@Test
+	public void testSetterDiscardsEncoding() throws Exception {
+		Reading e = new Reading.Builder()
+					.withValue(1.23)
+					.withEntity("l1")
+					.atTime(12345L)
+					.withCustomType("something")
+					.build();
+
+		byte[] encoded = e.encode();
+		e.setValue(4.56);
+		JSONAssert.assertEquals(e.toString(), new String(e.toBytes(), StandardCharsets.UTF_8), true);
+		assertNotSame(encoded, e.encode());
+
+		Reading m = (Reading) Message.deserialize(encoded);
+		m.setDeviceId("d1");
+		assertTrue(new String(m.toBytes(), StandardCharsets.UTF_8).contains("\"devicecode\":\"d1\""));
+	}
+
 }
@@ -3,16 +3,20 @@ package com.openenergi.flex.message;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
 
 
 import org.json.JSONException;
 import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+
 
 public class SignalTest {
 	
@@ -76,4 +80,63 @@ public class SignalTest {
 
 	}
 	
+	@Test
+	public void testDeserializeTopicLast() throws IOException {
+		String s = "{\"entities\": [\"l1\", \"l2\"], \"type\": \"oe-vars\", \"items\": [{\"start_at\": \"2016-08-05T12:01:00Z\", " +
+				"\"values\": [{\"variable\": \"oe-add\", \"value\": 2}]}], \"generated_at\": \"2016-07-30T12:00:01.000Z\", \"topic\": \"signals\"}";
+
+		@SuppressWarnings("unchecked")
+		Signal<SignalBatchList> m = (Signal<SignalBatchList>) Message.deserialize(s.getBytes(StandardCharsets.UTF_8));
+		assertEquals("signals", m.getTopic());
+		assertEquals(2, m.getEntities().size());
+		assertEquals("l2", m.getEntities().get(1));
+		assertEquals("oe-vars", m.getType());
+		assertEquals("oe-add", m.getItem(0).getValues().get(0).getSubtype());
+		assertEquals((Double) 2., m.getItem(0).getValues().get(0).getValue());
+	}
+
+	@Test
+	public void testDeserializeWithoutKnownTopic() {
+		try {
+			Message.deserialize("{\"type\": \"oe-vars\", \"entities\": [\"l1\"]}");
+			fail("Deserialized a message without a topic");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Missing message topic"));
+		}
+		try {
+			Message.deserialize("{\"type\": \"oe-vars\", \"topic\": \"no-such-topic\"}");
+			fail("Deserialized a message with an unknown topic");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("no-such-topic"));
+		}
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Exception {
+		int threads = 8;
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++){
+			String topic = "custom-signals-" + i;
+			workers[i] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				Message.registerMessageMapper(topic, new TypeReference<Signal<SignalPointItem>>(){});
+			});
+			workers[i].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) worker.join();
+
+		for (int i = 0; i < threads; i++){
+			Object m = Message.deserialize("{\"topic\": \"custom-signals-" + i + "\", \"type\": \"t\", \"entities\": [\"l1\"], " +
+					"\"items\": [{\"start_at\": \"2016-12-27T00:00:00Z\", \"value\": 1.5}]}");
+			assertTrue(m instanceof Signal);
+			assertEquals((Double) 1.5, ((SignalPointItem) ((Signal<?>) m).getItem(0)).getValue());
+		}
+	}
+
 }
@@ -0,0 +1,166 @@
+package com.openenergi.flex.persistence;
+
+import com.openenergi.flex.message.Event;
+import com.openenergi.flex.message.Reading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class CoalescingPersisterTest {
+
+    private static Reading reading(String entity, Reading.Type type, double value) {
+        return new Reading.Builder()
+                .withValue(value)
+                .withEntity(entity)
+                .withType(type)
+                .build();
+    }
+
+    private static List<Object> drain(MemoryPersister mp) {
+        List<Object> drained = new ArrayList<>();
+        for (TokenizedObject to : mp.peekLock(100)) {
+            drained.add(to.data);
+        }
+        return drained;
+    }
+
+    @Test
+    public void testKeepsNewestReading() {
+        MemoryPersister mp = new MemoryPersister(100);
+        CoalescingPersister cp = new CoalescingPersister(mp);
+        Reading newest = reading("l1", Reading.Type.POWER, 3);
+        Reading other = reading("l1", Reading.Type.AVAILABILITY_FFR_HIGH, 4);
+        try {
+            cp.put(reading("l1", Reading.Type.POWER, 1), 1L, false);
+            cp.put(reading("l1", Reading.Type.POWER, 2), 2L, false);
+            cp.put(newest, 3L, false);
+            cp.put(other, 4L, false);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+
+        assertEquals(2L, (long) mp.size());
+        List<Object> drained = drain(mp);
+        assertEquals(other, drained.get(0));
+        assertEquals(newest, drained.get(1));
+    }
+
+    @Test
+    public void testKeepsNewestN() {
+        MemoryPersister mp = new MemoryPersister(100);
+        CoalescingPersister cp = new CoalescingPersister(mp, 2);
+        try {
+            for (long i = 0; i < 10; i++) {
+                cp.put(reading("l1", Reading.Type.POWER, i), i, false);
+                cp.put(reading("l2", Reading.Type.POWER, i), i, false);
+            }
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(4L, (long) mp.size());
+        for (Object data : drain(mp)) {
+            assertEquals(8.5, ((Reading) data).getValue(), 0.51);
+        }
+    }
+
+    @Test
+    public void testDevicesKeptApart() {
+        MemoryPersister mp = new MemoryPersister(100);
+        CoalescingPersister cp = new CoalescingPersister(mp);
+        Reading d1 = reading("l1", Reading.Type.POWER, 1);
+        d1.setDeviceId("d1");
+        Reading d2 = reading("l1", Reading.Type.POWER, 2);
+        d2.setDeviceId("d2");
+        try {
+            cp.put(d1, 1L, false);
+            cp.put(d2, 2L, false);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(Arrays.asList(d2, d1), drain(mp));
+    }
+
+    @Test
+    public void testEventsNotCoalesced() {
+        MemoryPersister mp = new MemoryPersister(100);
+        CoalescingPersister cp = new CoalescingPersister(mp);
+        try {
+            for (long i = 0; i < 5; i++) {
+                cp.put(new Event.Builder()
+                        .withType(Event.Type.FFR_SWITCH_START)
+                        .withEntity("l1")
+                        .withLevel(Event.Level.INFO)
+                        .build(), i, false);
+            }
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(5L, (long) mp.size());
+    }
+
+    @Test
+    public void testAcknowledgedReadingForgotten() {
+        MemoryPersister mp = new MemoryPersister(100);
+        CoalescingPersister cp = new CoalescingPersister(mp);
+        try {
+            Long token = cp.put(reading("l1", Reading.Type.POWER, 1), 1L, true);
+            cp.delete(token); //acknowledged
+            cp.put(reading("l1", Reading.Type.POWER, 2), 2L, true);
+            cp.put(reading("l1", Reading.Type.POWER, 3), 3L, false);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(1L, (long) mp.size());
+        assertEquals(3.0, ((Reading) cp.peekLock().data).getValue(), 0.0);
+    }
+
+    @Test
+    public void testReplacingNeedsNoRoom() {
+        MemoryPersister mp = new MemoryPersister(2);
+        CoalescingPersister cp = new CoalescingPersister(mp);
+        Event event = new Event.Builder()
+                .withType(Event.Type.FFR_SWITCH_START)
+                .withEntity("l1")
+                .withLevel(Event.Level.INFO)
+                .build();
+        try {
+            cp.put(reading("l1", Reading.Type.POWER, 1), 1L, false);
+            cp.put(event, 1L, false);
+            cp.put(reading("l1", Reading.Type.POWER, 2), 1L, false); //full, but replaces the first reading
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(2L, (long) mp.size());
+        assertTrue(drain(mp).contains(event));
+    }
+
+    @Test
+    public void testEvictionsForwarded() {
+        MemoryPersister mp = new MemoryPersister(1);
+        CoalescingPersister cp = new CoalescingPersister(mp);
+        List<Long> evicted = new ArrayList<>();
+        cp.onEvicted(evicted::add);
+        try {
+            Long first = cp.put(reading("l1", Reading.Type.POWER, 1), 1L, false);
+            Long event = cp.put(new Event.Builder()
+                    .withType(Event.Type.FFR_SWITCH_START)
+                    .withEntity("l1")
+                    .withLevel(Event.Level.INFO)
+                    .build(), 5L, false); //evicts the first reading
+            Long second = cp.put(reading("l1", Reading.Type.POWER, 2), 6L, false); //evicts the event
+            Long third = cp.put(reading("l1", Reading.Type.POWER, 3), 7L, false); //supersedes the second reading
+            assertEquals(Arrays.asList(first, event, second), evicted);
+            assertEquals(third, cp.peekLock().token);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(1L, (long) mp.size());
+    }
+}
@@ -0,0 +1,313 @@
+package com.openenergi.flex.persistence;
+
+import com.openenergi.flex.message.Codec;
+import com.openenergi.flex.message.Reading;
+import com.openenergi.flex.message.ReadingBatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class FilePersisterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Reading reading(String entity, Long timestamp) {
+        return new Reading.Builder()
+                .withValue(1.23)
+                .withEntity(entity)
+                .atTime(timestamp)
+                .withType(Reading.Type.POWER)
+                .build();
+    }
+
+    private static String entityOf(TokenizedObject to) {
+        return ((Reading) to.data).getEntity();
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        FilePersister fp = new FilePersister(folder.getRoot().getPath(), 3);
+        fp.put(reading("l1", 1L), 1L, false);
+        assertEquals(1L, (long) fp.size());
+        assertEquals("l1", entityOf(fp.peekLock()));
+        fp.close();
+    }
+
+    @Test
+    public void testRecoverBatch() throws Exception {
+        FilePersister fp = new FilePersister(folder.getRoot().getPath(), 3);
+        ReadingBatch batch = new ReadingBatch.Builder()
+                .add("l1", Reading.Type.POWER, 1L, 1.5)
+                .add("l2", Reading.Type.POWER, 2L, 2.5)
+                .build();
+        fp.put(batch, 1L, false);
+        fp.close();
+
+        fp = new FilePersister(folder.getRoot().getPath(), 3);
+        assertEquals(1L, (long) fp.size());
+        ReadingBatch recovered = (ReadingBatch) fp.peekLock().data;
+        assertEquals(2, recovered.size());
+        assertEquals("l2", recovered.entityAt(1));
+        assertEquals(2.5, recovered.valueAt(1), 0.);
+        fp.close();
+    }
+
+    @Test
+    public void testCodec() throws Exception {
+        String dir = folder.getRoot().getPath();
+        FilePersister json = new FilePersister(dir, 10);
+        json.put(reading("l1", 1L), 1L, false);
+        long jsonBytes = json.bytes();
+        json.close();
+
+        FilePersister cbor = new FilePersister.Builder(dir).withCapacity(10).withCodec(Codec.CBOR).build();
+        cbor.put(reading("l2", 2L), 2L, false);
+        assertTrue(cbor.bytes() - jsonBytes < jsonBytes);
+        cbor.close();
+
+        //records of both codecs are recovered
+        cbor = new FilePersister.Builder(dir).withCapacity(10).withCodec(Codec.CBOR).build();
+        assertEquals(2L, (long) cbor.size());
+        assertEquals("l2", entityOf(cbor.peekLock()));
+        assertEquals("l1", entityOf(cbor.peekLock()));
+        cbor.close();
+    }
+
+    @Test
+    public void testCap() throws Exception {
+        FilePersister fp = new FilePersister(folder.getRoot().getPath(), 3);
+        fp.put(reading("l1", 1L), 1L, false);
+        fp.put(reading("l2", 2L), 2L, false);
+        fp.put(reading("l3", 3L), 3L, false);
+        fp.put(reading("l4", 4L), 4L, false); //first item gets evicted
+
+        try {
+            fp.put(reading("l0", 0L), 0L, false); //this item never gets inserted
+            fail("Should throw");
+        } catch (PersisterFullException expected) {
+        }
+        assertEquals(3L, (long) fp.size());
+        assertEquals("l4", entityOf(fp.peekLock()));
+        fp.close();
+    }
+
+    @Test
+    public void testLocking() throws Exception {
+        FilePersister fp = new FilePersister(folder.getRoot().getPath(), 3);
+        fp.put(reading("l1", 1L), 1L, false);
+        Long token2 = fp.put(reading("l2", 2L), 2L, true);
+
+        assertEquals("l1", entityOf(fp.peekLock()));
+        try {
+            fp.peekLock();
+            fail("Should throw");
+        } catch (NoSuchElementException expected) {
+        }
+
+        fp.release(token2);
+        assertEquals("l2", entityOf(fp.peekLock()));
+        fp.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        String dir = folder.getRoot().getPath();
+        FilePersister fp = new FilePersister(dir, 10);
+        Long token1 = fp.put(reading("l1", 1L), 1L, true);
+        fp.put(reading("l2", 2L), 2L, true);
+        fp.put(reading("l3", 3L), 3L, false);
+        fp.delete(token1);
+        fp.close();
+
+        FilePersister recovered = new FilePersister(dir, 10);
+        assertEquals(2L, (long) recovered.size());
+        assertEquals("l3", entityOf(recovered.peekLock())); //locks do not survive a restart
+        TokenizedObject to = recovered.peekLock();
+        assertEquals("l2", entityOf(to));
+        assertEquals(2L, (long) to.priority);
+
+        Long token4 = recovered.put(reading("l4", 4L), 4L, false);
+        assertTrue("Tokens should not be reused after recovery", token4 > to.token);
+        recovered.close();
+    }
+
+    @Test
+    public void testSegmentsReclaimed() throws Exception {
+        File dir = folder.getRoot();
+        FilePersister fp = new FilePersister(dir.getPath(), 1000, 512);
+        Long[] tokens = new Long[20];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = fp.put(reading("l" + i, (long) i), (long) i, false);
+        }
+        assertTrue(dir.listFiles().length > 1);
+
+        for (Long token : tokens) {
+            fp.delete(token);
+        }
+        assertEquals(0L, (long) fp.size());
+        assertEquals(1, dir.listFiles().length); //only the active segment is left
+        fp.close();
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws Exception {
+        String dir = folder.getRoot().getPath();
+        FilePersister fp = new FilePersister(dir, 10);
+        fp.put(reading("l1", 1L), 1L, false);
+        fp.put(reading("l2", 2L), 2L, false);
+        fp.close();
+
+        //corrupt the last byte of the second record's payload
+        File segment = folder.getRoot().listFiles()[0];
+        int secondEnd;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            int firstLength = readInt(raf, 1);
+            int secondOffset = 25 + firstLength;
+            secondEnd = secondOffset + 25 + readInt(raf, secondOffset + 1);
+            raf.seek(secondEnd - 1);
+            raf.write('!');
+        }
+
+        FilePersister recovered = new FilePersister(dir, 10);
+        assertEquals(1L, (long) recovered.size());
+        assertEquals("l1", entityOf(recovered.peekLock()));
+        recovered.close();
+    }
+
+    @Test
+    public void testCorruptHeaderIgnored() throws Exception {
+        String dir = folder.getRoot().getPath();
+        FilePersister fp = new FilePersister(dir, 10);
+        fp.put(reading("l1", 1L), 1L, false);
+        fp.put(reading("l2", 2L), 2L, false);
+        fp.close();
+
+        //corrupt the priority of the second record, leaving its payload intact
+        File segment = folder.getRoot().listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            int secondOffset = 25 + readInt(raf, 1);
+            raf.seek(secondOffset + 13 + 7);
+            raf.write(99);
+        }
+
+        FilePersister recovered = new FilePersister(dir, 10);
+        assertEquals(1L, (long) recovered.size());
+        assertEquals("l1", entityOf(recovered.peekLock()));
+        recovered.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        File dir = folder.getRoot();
+        FilePersister fp = new FilePersister(dir.getPath(), 1000, 512);
+        for (int i = 0; i < 20; i++) {
+            fp.put(reading("l" + i, (long) i), (long) i, false);
+        }
+
+        List<TokenizedObject> batch = fp.peekLock(5);
+        assertEquals(5, batch.size());
+        assertEquals("l19", entityOf(batch.get(0)));
+        assertEquals("l15", entityOf(batch.get(4)));
+
+        List<Long> tokens = new ArrayList<>();
+        for (TokenizedObject to : batch) {
+            tokens.add(to.token);
+        }
+        fp.release(tokens);
+        assertEquals("l19", entityOf(fp.peekLock()));
+
+        batch = fp.peekLock(100);
+        assertEquals(19, batch.size());
+        tokens.clear();
+        for (TokenizedObject to : batch) {
+            tokens.add(to.token);
+        }
+        tokens.add(fp.getByToken(batch.get(0).token + 1).token);
+        fp.delete(tokens);
+        assertEquals(0L, (long) fp.size());
+        assertEquals(1, dir.listFiles().length);
+        fp.close();
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        FilePersister fp = new FilePersister.Builder(folder.getRoot().getPath())
+                .withCapacity(10)
+                .withLeaseTimeout(50L)
+                .build();
+        Long token = fp.put(reading("l1", 1L), 1L, true); //never acknowledged
+        try {
+            fp.peekLock();
+            fail("Should throw");
+        } catch (NoSuchElementException expected) {
+        }
+
+        Thread.sleep(200L);
+        TokenizedObject to = fp.peekLock();
+        assertEquals(token, to.token);
+        assertEquals("l1", entityOf(to));
+        fp.close();
+    }
+
+    @Test
+    public void testLateReleaseKeepsData() throws Exception {
+        FilePersister fp = new FilePersister.Builder(folder.getRoot().getPath())
+                .withCapacity(10)
+                .withLeaseTimeout(50L)
+                .build();
+        Long token = fp.put(reading("l1", 1L), 1L, true); //its acknowledgement is late
+        Thread.sleep(200L);
+        TokenizedObject to = fp.peekLock(); //locked again once the lease expired
+
+        fp.release(token); //the late retriable acknowledgement
+        fp.release(Collections.singletonList(token));
+        assertEquals("l1", entityOf(to));
+        fp.close();
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        String dir = folder.getRoot().getPath();
+        long recordSize = 25 + reading("l1", 1L).toString().length();
+        FilePersister fp = new FilePersister.Builder(dir)
+                .withByteBudget(3 * recordSize)
+                .build();
+        for (long i = 0; i < 5; i++) {
+            fp.put(reading("l" + i, i), i, false); //lowest priorities get evicted
+        }
+        assertEquals(3L, (long) fp.size());
+        assertEquals(3 * recordSize, (long) fp.bytes());
+        fp.close();
+
+        FilePersister recovered = new FilePersister.Builder(dir)
+                .withByteBudget(3 * recordSize)
+                .build();
+        assertEquals(3 * recordSize, (long) recovered.bytes());
+        try {
+            recovered.put(reading("l0", 0L), 0L, false);
+            fail("Should throw");
+        } catch (PersisterFullException expected) {
+        }
+        assertEquals("l4", entityOf(recovered.peekLock()));
+        recovered.close();
+    }
+
+    private static int readInt(RandomAccessFile raf, long pos) throws IOException {
+        raf.seek(pos);
+        return raf.readInt();
+    }
+}
@@ -0,0 +1,50 @@
+package com.openenergi.flex.persistence;
+
+/**
+ * Measures the cost of acknowledging (deleting) and releasing a message as the backlog grows. Both should stay
+ * flat since they go through the token index rather than scanning the ordered set.
+ *
+ * Run with {@code java -cp <test classpath> com.openenergi.flex.persistence.MemoryPersisterBenchmark}.
+ */
+public class MemoryPersisterBenchmark {
+    private static final int OPERATIONS = 10000;
+
+    public static void main(String[] args) throws PersisterFullException {
+        int[] backlogs = {1000, 10000, 100000};
+        for (int round = 0; round < 2; round++) { //the first round warms up the JIT
+            for (int backlog : backlogs) {
+                run(backlog, round == 1);
+            }
+        }
+    }
+
+    private static void run(int backlog, boolean report) throws PersisterFullException {
+        MemoryPersister mp = new MemoryPersister(backlog + OPERATIONS);
+        for (int i = 0; i < backlog; i++) {
+            mp.put("backlog", (long) i, false);
+        }
+
+        //messages acknowledged in the order they were published, i.e. from the middle of the priority order
+        Long[] tokens = new Long[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            tokens[i] = mp.put("in-flight", (long) (backlog / 2) * OPERATIONS + i, true);
+        }
+
+        long start = System.nanoTime();
+        for (Long token : tokens) {
+            mp.release(token);
+        }
+        long release = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Long token : tokens) {
+            mp.delete(token);
+        }
+        long ack = System.nanoTime() - start;
+
+        if (report) {
+            System.out.println(String.format("backlog=%7d  release=%6d ns/op  ack=%6d ns/op  size=%d",
+                    backlog, release / OPERATIONS, ack / OPERATIONS, mp.size()));
+        }
+    }
+}
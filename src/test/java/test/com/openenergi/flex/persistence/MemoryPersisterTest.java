@@ -1,10 +1,23 @@
 package com.openenergi.flex.persistence;
 
+import com.openenergi.flex.message.Event;
+import com.openenergi.flex.message.Reading;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 
@@ -106,5 +119,405 @@ public class MemoryPersisterTest {
 
     }
 
+    @Test
+    public void testIndexByToken(){
+        MemoryPersister mp = new MemoryPersister(1000);
+        long[] tokens = new long[500];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = mp.put("item" + i, (long) i, true);
+            }
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+
+        //look tokens up with Long instances outside the boxing cache so that they are compared by value
+        assertEquals("item300", mp.getByToken(Long.valueOf(tokens[300])).data);
+        mp.release(Long.valueOf(tokens[300]));
+        assertEquals("item300", mp.peekLock().data);
+
+        mp.delete(Long.valueOf(tokens[300]));
+        assertEquals(499L, (long) mp.size());
+        try {
+            mp.getByToken(Long.valueOf(tokens[300]));
+            fail("Should throw");
+        } catch (NoSuchElementException expected){
+        }
+    }
+
+    @Test
+    public void testEqualPriorities(){
+        MemoryPersister mp = new MemoryPersister(3);
+        try {
+            mp.put("asdf", 1L, false);
+            mp.put("bsdf", 1L, false);
+            mp.put("csdf", 1L, false);
+            mp.put("dsdf", 2L, false); //oldest of the equal priorities gets evicted
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+
+        assertEquals(3L, (long) mp.size());
+        assertEquals("dsdf", mp.peekLock().data);
+        assertEquals("csdf", mp.peekLock().data); //newest first among equal priorities
+        assertEquals("bsdf", mp.peekLock().data);
+    }
+
+    @Test
+    public void testBurstOfEqualPriorities() throws InterruptedException {
+        final int threads = 8;
+        final int perThread = 5000;
+        MemoryPersister mp = new MemoryPersister(threads * perThread);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        //every thread samples on the same few millisecond timestamps
+                        mp.put(thread + ":" + i, (long) (i / 100), false);
+                    }
+                } catch (InterruptedException | PersisterFullException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(0, failures.get());
+        assertEquals(threads * perThread, (long) mp.size());
+
+        Set<Object> drained = new HashSet<>();
+        while (true) {
+            try {
+                TokenizedObject to = mp.peekLock();
+                drained.add(to.data);
+                mp.delete(to.token);
+            } catch (NoSuchElementException ex) {
+                break;
+            }
+        }
+        assertEquals(threads * perThread, drained.size());
+    }
+
+    @Test
+    public void testBatchPeekLock(){
+        MemoryPersister mp = new MemoryPersister(10);
+        Long token2 = -1L;
+        Long token4 = -1L;
+        try {
+            mp.put("asdf", 1L, false);
+            token2 = mp.put("bsdf", 2L, false);
+            mp.put("csdf", 3L, true);
+            token4 = mp.put("dsdf", 4L, false);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+
+        List<TokenizedObject> batch = mp.peekLock(2);
+        assertEquals(2, batch.size());
+        assertEquals("dsdf", batch.get(0).data); //locked entries are skipped
+        assertEquals("bsdf", batch.get(1).data);
+
+        mp.delete(Arrays.asList(token2, token4));
+        assertEquals(2L, (long) mp.size());
+        batch = mp.peekLock(10);
+        assertEquals(1, batch.size());
+        assertEquals("asdf", batch.get(0).data);
+        assertEquals(0, mp.peekLock(10).size());
+
+        mp.release(Arrays.asList(batch.get(0).token));
+        assertEquals("asdf", mp.peekLock().data);
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+        MemoryPersister mp = new MemoryPersister.Builder().withCapacity(10).withLeaseTimeout(50L).build();
+        AtomicInteger notified = new AtomicInteger();
+        mp.onAvailable(notified::incrementAndGet);
+        Long token1 = -1L;
+        Long token2 = -1L;
+        try {
+            token1 = mp.put("asdf", 1L, true); //never acknowledged
+            token2 = mp.put("bsdf", 2L, true);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        mp.delete(token2); //acknowledged
+
+        try {
+            mp.peekLock();
+            fail("Should throw");
+        } catch (NoSuchElementException expected){
+        }
+
+        Thread.sleep(200L);
+        assertEquals(1, notified.get());
+        assertEquals(1L, (long) mp.size());
+        TokenizedObject to = mp.peekLock();
+        assertEquals("asdf", to.data);
+        assertEquals(token1, to.token);
+    }
+
+    @Test
+    public void testLeaseRenewedOnRelock() throws InterruptedException {
+        MemoryPersister mp = new MemoryPersister.Builder().withCapacity(10).withLeaseTimeout(100L).build();
+        Long token = -1L;
+        try {
+            token = mp.put("asdf", 1L, true);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        Thread.sleep(60L);
+        mp.release(token);
+        assertEquals("asdf", mp.peekLock().data); //locked again under a new lease
+
+        Thread.sleep(60L); //the first lease has expired but the second has not
+        try {
+            mp.peekLock();
+            fail("Should throw");
+        } catch (NoSuchElementException expected){
+        }
+    }
+
+    @Test
+    public void testCloseStopsLeaseSweeps() throws InterruptedException {
+        MemoryPersister mp = new MemoryPersister.Builder().withCapacity(10).withLeaseTimeout(20L).build();
+        AtomicInteger notified = new AtomicInteger();
+        mp.onAvailable(notified::incrementAndGet);
+        try {
+            mp.put("asdf", 1L, true);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        mp.close();
+
+        Thread.sleep(100L);
+        assertEquals(0, notified.get());
+        try {
+            mp.peekLock();
+            fail("Should throw");
+        } catch (NoSuchElementException expected){
+        }
+    }
+
+    @Test
+    public void testDeletedObjectsNotKeptByLeases() throws Exception {
+        MemoryPersister mp = new MemoryPersister.Builder().withCapacity(10).withLeaseTimeout(60000L).build();
+        Long token = mp.put(new StringBuilder("asdf"), 1L, true);
+        WeakReference<Object> data = new WeakReference<>(mp.getByToken(token).data);
+        mp.delete(token); //acknowledged long before its lease would expire
+
+        for (int i = 0; i < 10 && data.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertNull(data.get());
+        mp.close();
+    }
+
+    @Test
+    public void testByteBudget(){
+        MemoryPersister mp = new MemoryPersister.Builder().withByteBudget(25L).build();
+        try {
+            mp.put("aaaaaaaaaa", 1L, false);
+            mp.put("bbbbbbbbbb", 2L, false);
+            mp.put("cccccccccc", 3L, false); //first item gets evicted
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        assertEquals(2L, (long) mp.size());
+        assertEquals(20L, (long) mp.bytes());
+
+        try {
+            mp.put("dddddddddd", 0L, false); //this item never gets inserted
+            fail("Should throw");
+        } catch (PersisterFullException expected) {
+        }
+        try {
+            mp.put("a string that is larger than the whole budget", 10L, false);
+            fail("Should throw");
+        } catch (PersisterFullException expected) {
+        }
+        assertEquals(2L, (long) mp.size());
+        assertEquals("cccccccccc", mp.peekLock().data);
+        assertEquals("bbbbbbbbbb", mp.peekLock().data);
+    }
+
+    @Test
+    public void testEvictsNothingUnlessItFits(){
+        MemoryPersister mp = new MemoryPersister.Builder().withByteBudget(20L).build();
+        try {
+            mp.put("aaaaaaaaaa", 1L, false);
+            mp.put("bbbbbbbbbb", 3L, false);
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+        try {
+            mp.put("cccccccccccccccc", 2L, false); //would need to evict both but outranks only one
+            fail("Should throw");
+        } catch (PersisterFullException expected) {
+        }
+        assertEquals(2L, (long) mp.size());
+    }
+
+    @Test
+    public void testTopicQuota(){
+        Reading reading = new Reading.Builder()
+                .withValue(1.23)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withType(Reading.Type.POWER)
+                .build();
+        Event event = new Event.Builder()
+                .withValue("value")
+                .withLevel(Event.Level.WARN)
+                .withEntity("l1")
+                .atTime(12345L)
+                .withCustomType("something")
+                .build();
+        long readingSize = reading.toString().getBytes(StandardCharsets.UTF_8).length;
 
+        MemoryPersister mp = new MemoryPersister.Builder()
+                .withCapacity(3)
+                .withTopicQuota("readings", 2 * readingSize)
+                .build();
+        try {
+            mp.put(event, 1L, false);
+            for (long i = 10; i < 15; i++) {
+                mp.put(reading, i, false); //readings only evict older readings
+            }
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+
+        assertEquals(3L, (long) mp.size());
+        assertEquals(14L, (long) mp.peekLock().priority);
+        assertEquals(13L, (long) mp.peekLock().priority);
+        assertEquals(event, mp.peekLock().data);
+    }
+
+    @Test
+    public void testDeviceQuota(){
+        MemoryPersister mp = new MemoryPersister.Builder()
+                .withCapacity(3)
+                .withDeviceQuota(2)
+                .build();
+        Reading other = new Reading.Builder().withValue(1.23).withEntity("l1").atTime(12345L).withType(Reading.Type.POWER).build();
+        other.setDeviceId("d2");
+        try {
+            mp.put(other, 1L, false);
+            for (long i = 10; i < 15; i++) {
+                Reading reading = new Reading.Builder().withValue(1.23).withEntity("l1").atTime(12345L).withType(Reading.Type.POWER).build();
+                reading.setDeviceId("d1");
+                mp.put(reading, i, false); //only evicts older readings of d1
+            }
+        } catch (PersisterFullException e) {
+            fail("Should not throw");
+        }
+
+        assertEquals(3L, (long) mp.size());
+        assertEquals(14L, (long) mp.peekLock().priority);
+        assertEquals(13L, (long) mp.peekLock().priority);
+        assertEquals(other, mp.peekLock().data);
+    }
+
+    @Test
+    public void testRollup(){
+        MemoryPersister mp = new MemoryPersister.Builder()
+                .withCapacity(10)
+                .withRollup(0.5, 1000L)
+                .build();
+        long base = 1000000L;
+        try {
+            for (int i = 0; i < 8; i++) {
+                Reading reading = new Reading.Builder()
+                        .withValue(i)
+                        .withEntity("l1")
+                        .atTime(base + i * 100)
+                        .withType(Reading.Type.POWER)
+                        .build();
+                mp.put(reading, (long) i, false); //the first five get rolled up at the high-water mark
+                if (i == 4) awaitSize(mp, 1);
+            }
+        } catch (PersisterFullException | InterruptedException e) {
+            fail("Should not throw");
+        }
+
+        assertEquals(4L, (long) mp.size());
+        assertEquals(7.0, ((Reading) mp.peekLock().data).getValue(), 0.0);
+        assertEquals(6.0, ((Reading) mp.peekLock().data).getValue(), 0.0);
+        assertEquals(5.0, ((Reading) mp.peekLock().data).getValue(), 0.0);
+        TokenizedObject to = mp.peekLock();
+        Reading aggregate = (Reading) to.data;
+        assertEquals(4L, (long) to.priority);
+        assertEquals(base, (long) aggregate.getTimestamp());
+        assertEquals(2.0, aggregate.getValue(), 0.0);
+        assertEquals(0.0, aggregate.getMin(), 0.0);
+        assertEquals(4.0, aggregate.getMax(), 0.0);
+        assertEquals(5, (int) aggregate.getSamples());
+        assertEquals("l1", aggregate.getEntity());
+        assertEquals("power", aggregate.getType());
+    }
+
+    @Test
+    public void testRollupDegradesGradually(){
+        MemoryPersister mp = new MemoryPersister.Builder()
+                .withCapacity(4)
+                .withRollup(0.5, 1000L)
+                .build();
+        long base = 1000000L;
+        try {
+            mp.put(new Reading.Builder().withValue(1).withEntity("l1").atTime(base).withType(Reading.Type.POWER).build(), 1L, false);
+            mp.put(new Reading.Builder().withValue(1).withEntity("l2").atTime(base).withType(Reading.Type.POWER).build(), 1L, false);
+            mp.put(new Reading.Builder().withValue(3).withEntity("l1").atTime(base + 1000).withType(Reading.Type.POWER).build(), 1L, false);
+            awaitSize(mp, 2);
+        } catch (PersisterFullException | InterruptedException e) {
+            fail("Should not throw");
+        }
+
+        //the l1 readings are a bucket apart, so they are only rolled up once the bucket is doubled
+        assertEquals(2L, (long) mp.size());
+        List<TokenizedObject> batch = mp.peekLock(2);
+        Reading aggregate = (Reading) batch.get(0).data;
+        assertEquals("l1", aggregate.getEntity());
+        assertEquals(2.0, aggregate.getValue(), 0.0);
+        assertEquals(2, (int) aggregate.getSamples());
+        assertEquals("l2", ((Reading) batch.get(1).data).getEntity());
+        assertEquals(null, ((Reading) batch.get(1).data).getSamples());
+    }
+
+    @Test
+    public void testRolledUpReadingsReported() throws Exception {
+        MemoryPersister mp = new MemoryPersister.Builder()
+                .withCapacity(10)
+                .withRollup(0.5, 1000L)
+                .build();
+        List<Long> replaced = Collections.synchronizedList(new ArrayList<>());
+        mp.onEvicted(replaced::add);
+        Set<Long> tokens = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            tokens.add(mp.put(new Reading.Builder().withValue(i).withEntity("l1").atTime(1000000L + i).withType(Reading.Type.POWER).build(), 1L, false));
+        }
+        awaitSize(mp, 1);
+        assertEquals(1L, (long) mp.size());
+        assertEquals(tokens, new HashSet<>(replaced));
+    }
+
+    /**
+     * Waits for background roll-ups to bring the persister down to the given size.
+     */
+    private static void awaitSize(MemoryPersister mp, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (mp.size() > size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+    }
 }
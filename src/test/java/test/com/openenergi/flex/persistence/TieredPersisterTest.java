@@ -0,0 +1,134 @@
+package com.openenergi.flex.persistence;
+
+import com.openenergi.flex.message.Reading;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class TieredPersisterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Reading reading(String entity, Long timestamp) {
+        return new Reading.Builder()
+                .withValue(1.23)
+                .withEntity(entity)
+                .atTime(timestamp)
+                .withType(Reading.Type.POWER)
+                .build();
+    }
+
+    private static String entityOf(TokenizedObject to) {
+        return ((Reading) to.data).getEntity();
+    }
+
+    private TieredPersister persister(Integer headSize) throws Exception {
+        FilePersister tail = new FilePersister(folder.getRoot().getPath(), 100);
+        return new TieredPersister.Builder(tail).withHeadSize(headSize).build();
+    }
+
+    private static void awaitInMemory(TieredPersister tp, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && tp.sizeInMemory() != size; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(size, (int) tp.sizeInMemory());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        TieredPersister tp = persister(2);
+        tp.put(reading("l1", 1L), 1L, false);
+        tp.put(reading("l3", 3L), 3L, false);
+        tp.put(reading("l2", 2L), 2L, false); //spills l1
+        tp.put(reading("l0", 0L), 0L, false); //goes straight to the tail
+
+        assertEquals(4L, (long) tp.size());
+        assertEquals(2L, (long) tp.sizeInMemory());
+        List<TokenizedObject> batch = tp.peekLock(4);
+        assertEquals(4, batch.size());
+        assertEquals("l3", entityOf(batch.get(0)));
+        assertEquals("l2", entityOf(batch.get(1)));
+        assertEquals("l1", entityOf(batch.get(2)));
+        assertEquals("l0", entityOf(batch.get(3)));
+        tp.close();
+    }
+
+    @Test
+    public void testUtilisationCoversBothTiers() throws Exception {
+        TieredPersister tp = persister(2);
+        tp.put(reading("l1", 1L), 1L, false);
+        tp.put(reading("l2", 2L), 2L, false); //the head is full, the tail empty
+        assertEquals(2.0 / 102, tp.utilisation(), 1e-9);
+
+        tp.put(reading("l3", 3L), 3L, false);
+        tp.put(reading("l0", 0L), 0L, false);
+        assertEquals(4.0 / 102, tp.utilisation(), 1e-9);
+        tp.close();
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        TieredPersister tp = persister(2);
+        Long[] tokens = new Long[5];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = tp.put(reading("l" + i, (long) i), (long) i, false);
+        }
+
+        TokenizedObject to = tp.peekLock();
+        assertEquals(tokens[4], to.token);
+        tp.delete(to.token);
+        tp.delete(tp.peekLock().token);
+        awaitInMemory(tp, 2);
+
+        //tokens survive the move to memory
+        to = tp.peekLock();
+        assertEquals(tokens[2], to.token);
+        assertEquals("l2", entityOf(tp.getByToken(tokens[2])));
+        tp.release(to.token);
+        assertEquals(tokens[2], tp.peekLock().token);
+        assertEquals(3L, (long) tp.size());
+        tp.close();
+    }
+
+    @Test
+    public void testLocking() throws Exception {
+        TieredPersister tp = persister(1);
+        Long token = tp.put(reading("l1", 1L), 1L, true);
+        tp.put(reading("l0", 0L), 0L, true);
+        try {
+            tp.peekLock();
+            fail("Should throw");
+        } catch (NoSuchElementException expected) {
+        }
+
+        tp.release(token);
+        assertEquals("l1", entityOf(tp.peekLock()));
+        tp.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        TieredPersister tp = persister(2);
+        for (long i = 0; i < 4; i++) {
+            tp.put(reading("l" + i, i), i, false);
+        }
+        tp.delete(tp.peekLock().token);
+        tp.close(); //the head is spilled to disk
+
+        TieredPersister recovered = persister(2);
+        assertEquals(3L, (long) recovered.size());
+        awaitInMemory(recovered, 2);
+        assertEquals("l2", entityOf(recovered.peekLock()));
+        assertEquals("l1", entityOf(recovered.peekLock()));
+        assertEquals("l0", entityOf(recovered.peekLock()));
+        recovered.close();
+    }
+}